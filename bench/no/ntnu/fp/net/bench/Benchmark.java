@@ -0,0 +1,182 @@
+package no.ntnu.fp.net.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small benchmark harness. A benchmark case implements {@link #setUp()},
+ * {@link #operation()} and {@link #tearDown()}; {@link #measure(long)} runs
+ * warmup and measurement iterations and returns latency percentiles and
+ * throughput. <br>
+ * <br>
+ * For operations that take less than a microsecond a single timing is mostly
+ * noise, so each sample times {@link #batch} operations and the latency
+ * reported is the sample time divided by the batch size.
+ */
+public abstract class Benchmark {
+
+    /** Name reported in the results, e.g. "ConnectionImpl.send/loss=0.01/size=256". */
+    protected final String name;
+    /** Operations timed together as one sample. */
+    protected int batch = 1;
+    /** Samples run and thrown away before measuring. */
+    protected int warmupSamples = 100;
+    /** Samples measured. */
+    protected int samples = 1000;
+
+    /** How long tearDown() may take after measuring before it is abandoned. */
+    private static final long TEARDOWN_GRACE_MILLIS = 5000;
+
+    private volatile int failures;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    /** Prepare the case, e.g. connect. Not timed. */
+    protected void setUp() throws Exception {
+    }
+
+    /** The operation being measured. */
+    protected abstract void operation() throws Exception;
+
+    /** Release what setUp() created. Not timed. */
+    protected void tearDown() throws Exception {
+    }
+
+    /** Record that an operation failed without aborting the run. */
+    protected void failed() {
+        failures++;
+    }
+
+    /**
+     * Run the case. The case runs on its own daemon thread, so an operation
+     * that hangs (e.g. a connection that never recovers from loss) only costs
+     * the deadline, and the result holds the samples taken until then. A
+     * tearDown() that hangs is abandoned after a few seconds.
+     *
+     * @param deadlineMillis
+     *            longest time the whole case may take.
+     * @return the result.
+     */
+    public Result measure(long deadlineMillis) {
+        final long[] times = new long[samples];
+        final int[] taken = new int[1];
+        final Exception[] error = new Exception[1];
+        final long[] elapsed = new long[1];
+        final CountDownLatch measured = new CountDownLatch(1);
+
+        Thread runner = new Thread(name) {
+            public void run() {
+                try {
+                    setUp();
+                    for (int i = 0; i < warmupSamples; i++) {
+                        sample();
+                    }
+                    long start = System.nanoTime();
+                    for (int i = 0; i < samples; i++) {
+                        times[i] = sample();
+                        taken[0] = i + 1;
+                    }
+                    elapsed[0] = System.nanoTime() - start;
+                }
+                catch (Exception e) {
+                    error[0] = e;
+                }
+                finally {
+                    measured.countDown();
+                    try {
+                        tearDown();
+                    }
+                    catch (Exception e) {
+                        // Nothing more to do, the result is already taken.
+                    }
+                }
+            }
+        };
+        runner.setDaemon(true);
+        long start = System.nanoTime();
+        runner.start();
+        boolean timedOut;
+        try {
+            timedOut = !measured.await(deadlineMillis, TimeUnit.MILLISECONDS);
+            if (!timedOut) runner.join(TEARDOWN_GRACE_MILLIS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            timedOut = true;
+        }
+        int n = taken[0];
+        long total = timedOut || elapsed[0] == 0 ? System.nanoTime() - start : elapsed[0];
+        return new Result(name, Arrays.copyOf(times, n), batch, total, failures, timedOut,
+                error[0]);
+    }
+
+    private long sample() throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < batch; i++) {
+            operation();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Latency and throughput of one case. Latencies are per operation. */
+    public static class Result {
+        public final String name;
+        public final int operations;
+        public final double opsPerSecond;
+        public final double p50, p90, p99, p999, max;
+        public final int failures;
+        public final boolean timedOut;
+        public final Exception error;
+
+        Result(String name, long[] sampleNanos, int batch, long totalNanos, int failures,
+                boolean timedOut, Exception error) {
+            this.name = name;
+            this.failures = failures;
+            this.timedOut = timedOut;
+            this.error = error;
+            operations = sampleNanos.length * batch;
+            Arrays.sort(sampleNanos);
+            opsPerSecond = totalNanos == 0 ? 0 : operations * 1e9 / totalNanos;
+            p50 = percentile(sampleNanos, 0.50) / batch;
+            p90 = percentile(sampleNanos, 0.90) / batch;
+            p99 = percentile(sampleNanos, 0.99) / batch;
+            p999 = percentile(sampleNanos, 0.999) / batch;
+            max = sampleNanos.length == 0 ? 0 : (double)sampleNanos[sampleNanos.length - 1] / batch;
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int i = (int)Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+        }
+
+        /** Column names matching {@link #toCsv()}. */
+        public static String csvHeader() {
+            return "name,operations,ops_per_s,p50_ns,p90_ns,p99_ns,p999_ns,max_ns,failures,timed_out";
+        }
+
+        public String toCsv() {
+            return String.format(java.util.Locale.ROOT, "%s,%d,%.1f,%.0f,%.0f,%.0f,%.0f,%.0f,%d,%b",
+                    name, operations, opsPerSecond, p50, p90, p99, p999, max, failures, timedOut);
+        }
+
+        public String toString() {
+            String s = String.format(java.util.Locale.ROOT,
+                    "%-55s %10.1f ops/s  p50 %s  p99 %s  p99.9 %s  max %s", name, opsPerSecond,
+                    time(p50), time(p99), time(p999), time(max));
+            if (failures > 0) s += "  failures " + failures;
+            if (timedOut) s += "  TIMED OUT after " + operations + " ops";
+            if (error != null) s += "  ERROR " + error;
+            return s;
+        }
+
+        private static String time(double nanos) {
+            if (nanos < 1e3) return String.format(java.util.Locale.ROOT, "%.0fns", nanos);
+            if (nanos < 1e6) return String.format(java.util.Locale.ROOT, "%.1fus", nanos / 1e3);
+            return String.format(java.util.Locale.ROOT, "%.1fms", nanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package no.ntnu.fp.net.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import no.ntnu.fp.net.separat.server.BroadcastBenchmark;
+
+/**
+ * Runs the benchmark suites and writes the results as CSV, so later runs can
+ * be compared against them. <br>
+ * <br>
+ * Usage: BenchmarkRunner [packet] [connection] [broadcast] <br>
+ * With no arguments all suites are run. System properties:
+ * <ul>
+ * <li>bench.out - CSV file to write, default bench-results.csv.
+ * <li>bench.baseline - CSV file from an earlier run to compare against.
+ * <li>bench.deadline - longest time in seconds one case may take, default
+ * 120.
+ * </ul>
+ * For a whole server under load from many clients, see
+ * {@link ChatLoadGenerator}.
+ */
+public class BenchmarkRunner {
+
+    private static final int[] SIZES = { 16, 256, 4096 };
+    private static final double[] LOSS_RATES = { 0.0, 0.01, 0.05 };
+    private static final int[] USER_COUNTS = { 10, 100, 1000 };
+
+    public static void main(String[] args) throws IOException {
+        List<String> suites = new ArrayList<String>();
+        for (String arg : args) {
+            suites.add(arg);
+        }
+        boolean all = suites.isEmpty();
+        long deadline = Long.getLong("bench.deadline", 120L) * 1000;
+
+        List<Benchmark> cases = new ArrayList<Benchmark>();
+        if (all || suites.contains("packet")) cases.addAll(PacketBenchmark.cases(SIZES));
+        if (all || suites.contains("connection"))
+            cases.addAll(ConnectionBenchmark.cases(SIZES, LOSS_RATES));
+        if (all || suites.contains("broadcast")) cases.addAll(BroadcastBenchmark.cases(USER_COUNTS));
+
+        Map<String, String[]> baseline = readBaseline(System.getProperty("bench.baseline"));
+        List<Benchmark.Result> results = new ArrayList<Benchmark.Result>();
+        for (Benchmark b : cases) {
+            Benchmark.Result r = b.measure(deadline);
+            results.add(r);
+            System.out.println(r + compare(r, baseline.get(r.name)));
+        }
+
+        String out = System.getProperty("bench.out", "bench-results.csv");
+        PrintWriter writer = new PrintWriter(new FileWriter(out));
+        try {
+            writer.println(Benchmark.Result.csvHeader());
+            for (Benchmark.Result r : results) {
+                writer.println(r.toCsv());
+            }
+        }
+        finally {
+            writer.close();
+        }
+        System.out.println("Results written to " + out);
+        System.exit(0); // Drain threads of timed out cases may still run.
+    }
+
+    /** Change in throughput and median latency against the baseline. */
+    private static String compare(Benchmark.Result r, String[] base) {
+        if (base == null) return "";
+        double baseOps = Double.parseDouble(base[2]);
+        double baseP50 = Double.parseDouble(base[3]);
+        return String.format(java.util.Locale.ROOT, "  [vs baseline: ops %+.1f%%, p50 %+.1f%%]",
+                baseOps == 0 ? 0 : (r.opsPerSecond / baseOps - 1) * 100,
+                baseP50 == 0 ? 0 : (r.p50 / baseP50 - 1) * 100);
+    }
+
+    private static Map<String, String[]> readBaseline(String file) throws IOException {
+        Map<String, String[]> rows = new HashMap<String, String[]>();
+        if (file == null || !new File(file).exists()) return rows;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            reader.readLine(); // Header.
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split(",");
+                rows.put(cols[0], cols);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,513 @@
+package no.ntnu.fp.net.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import no.ntnu.fp.net.co.CompressedConnection;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.SimpleConnection;
+import no.ntnu.fp.net.separat.client.ChatClient;
+import no.ntnu.fp.net.separat.client.ChatView;
+import no.ntnu.fp.net.separat.server.ChatServerCore;
+
+/**
+ * Puts a chat server under load from many simulated users and writes what
+ * it measured as JSON. Each user is a {@link ChatClient} without a window,
+ * talking to the server over its own connection, so the server sees the
+ * same traffic as from real clients. <br>
+ * <br>
+ * After all users have logged on, each says a line at a fixed rate for the
+ * measured period, while users are logged off and replaced by new ones at
+ * the churn rate. A line carries the System.nanoTime() it was queued at, so
+ * every user that receives it can take the broadcast latency, end to end;
+ * all users run in this VM, so the clocks agree. Lines from another run, or
+ * sent before the receiving user logged on, e.g. replayed from the server's
+ * history, are not counted. The server's thread count
+ * and heap are read every second over JMX. <br>
+ * <br>
+ * Usage: ChatLoadGenerator, with the system properties:
+ * <ul>
+ * <li>load.clients - users logged on at a time, default 100.
+ * <li>load.host, load.port - the server, default localhost:4444.
+ * <li>load.connection - simple for SimpleConnection, impl for ConnectionImpl,
+ * default simple.
+ * <li>load.localPort - first local port of the ConnectionImpl users, default
+ * 6000.
+ * <li>load.embedded - true to start a headless ChatServerCore in this VM
+ * first, without a history, default false.
+ * <li>load.jmx - host:port of the server's JMX agent. Without it the
+ * threads and heap of this VM are reported, which only makes sense with
+ * load.embedded.
+ * <li>load.rate - lines per second per user, default 0.5.
+ * <li>load.churn - users replaced per second, default 0.
+ * <li>load.rampUp - milliseconds between logging on users, default 20.
+ * <li>load.duration - seconds measured, default 60.
+ * <li>load.out - report file, default load-report.json.
+ * </ul>
+ */
+public class ChatLoadGenerator {
+
+    /**
+     * Starts every line sent, followed by the id of the run, '#', the
+     * sequence number, ':' and the time.
+     */
+    private static final String MARK = "load#";
+
+    private static final int LOGIN_ATTEMPTS = 3;
+
+    private final int clients = Integer.getInteger("load.clients", 100).intValue();
+    private final String host = System.getProperty("load.host", "localhost");
+    private final int port = Integer.getInteger("load.port", 4444).intValue();
+    private final boolean simple = !"impl".equals(System.getProperty("load.connection", "simple"));
+    private final AtomicInteger nextLocalPort = new AtomicInteger(Integer.getInteger(
+            "load.localPort", 6000).intValue());
+    private final boolean embedded = Boolean.getBoolean("load.embedded");
+    private final String jmx = System.getProperty("load.jmx");
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "0.5"));
+    private final double churn = Double.parseDouble(System.getProperty("load.churn", "0"));
+    private final long rampUp = Long.getLong("load.rampUp", 20).longValue();
+    private final long duration = Long.getLong("load.duration", 60).longValue();
+    private final String out = System.getProperty("load.out", "load-report.json");
+
+    /** Sends the lines and replaces users. */
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(4);
+    /** Logs users on and off, which may take long. */
+    private final ExecutorService lifecycle = Executors.newCachedThreadPool();
+    private final Random random = new Random();
+    /** MARK and the id of this run, so lines from other runs are told apart. */
+    private final String mark = MARK + Integer.toString(random.nextInt() & Integer.MAX_VALUE, 36)
+            + "#";
+
+    /** Users logged on or logging on. Guarded by itself. */
+    private final List<Session> live = new ArrayList<Session>();
+    /** Every user, also those churned away, for their samples. Guarded by live. */
+    private final List<Session> all = new ArrayList<Session>();
+    private final AtomicInteger nextName = new AtomicInteger();
+
+    private volatile boolean measuring = false;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    /** Lines with the mark that were not sampled: from before logon, or not sent by this run. */
+    private final AtomicLong ignored = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger loginFailures = new AtomicInteger();
+    private final AtomicInteger churned = new AtomicInteger();
+    /** Nanoseconds from starting to log on until the roster arrived. */
+    private final Samples loginTimes = new Samples();
+
+    private MBeanServerConnection server;
+    private String serverScope;
+    private int threadsMax = 0;
+    private int threadsEnd = 0;
+    private long heapMax = 0;
+    private long heapEnd = 0;
+
+    public static void main(String[] args) throws Exception {
+        new ChatLoadGenerator().run();
+        System.exit(0); // Client threads may still be closing.
+    }
+
+    private void run() throws Exception {
+        if (embedded) {
+            ChatServerCore.SIMPLE_CONNECTION = simple;
+            // Lines replayed from an earlier run's history are not load.
+            ChatServerCore.HISTORY_DIR = "";
+            new ChatServerCore(port).startServer();
+            Thread.sleep(500);
+        }
+        connectJmx();
+
+        System.out.println("Logging on " + clients + " users");
+        for (int i = 0; i < clients; i++) {
+            start(new Session());
+            Thread.sleep(rampUp);
+        }
+        // Wait for the last rosters.
+        Thread.sleep(1000);
+
+        System.out.println("Measuring for " + duration + " s");
+        measuring = true;
+        long begin = System.nanoTime();
+        if (churn > 0) {
+            timer.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    churn();
+                }
+            }, 0, (long)(1e9 / churn), TimeUnit.NANOSECONDS);
+        }
+        for (long s = 0; s < duration; s++) {
+            Thread.sleep(1000);
+            sampleServer();
+        }
+        measuring = false;
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        timer.shutdownNow();
+
+        System.out.println("Logging off");
+        synchronized (live) {
+            for (final Session session : live) {
+                lifecycle.execute(new Runnable() {
+                    public void run() {
+                        session.stop();
+                    }
+                });
+            }
+        }
+        lifecycle.shutdown();
+        lifecycle.awaitTermination(10, TimeUnit.SECONDS);
+
+        String report = report(seconds);
+        PrintWriter writer = new PrintWriter(new FileWriter(out));
+        try {
+            writer.println(report);
+        }
+        finally {
+            writer.close();
+        }
+        System.out.println(report);
+        System.out.println("Report written to " + out);
+    }
+
+    /** Log a user on, and have it talk once it is. */
+    private void start(Session session) {
+        synchronized (live) {
+            live.add(session);
+            all.add(session);
+        }
+        if (!session.login()) {
+            loginFailures.incrementAndGet();
+            synchronized (live) {
+                live.remove(session);
+            }
+            return;
+        }
+        if (rate > 0) {
+            long period = (long)(1e9 / rate);
+            try {
+                session.talking = timer.scheduleAtFixedRate(session, (long)(random.nextDouble()
+                        * period), period, TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // Logged on by churn after the measuring ended.
+            }
+        }
+    }
+
+    /** Log a random user off and a new one on. */
+    private void churn() {
+        final Session leaving;
+        synchronized (live) {
+            if (live.isEmpty()) return;
+            leaving = live.remove(random.nextInt(live.size()));
+        }
+        churned.incrementAndGet();
+        try {
+            lifecycle.execute(new Runnable() {
+                public void run() {
+                    leaving.stop();
+                    start(new Session());
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // Shutting down; the user is logged off with the others.
+            synchronized (live) {
+                live.add(leaving);
+            }
+        }
+    }
+
+    private void connectJmx() throws IOException {
+        if (jmx != null) {
+            server = JMXConnectorFactory.connect(
+                    new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + jmx + "/jmxrmi"))
+                    .getMBeanServerConnection();
+            serverScope = "jmx " + jmx;
+        }
+        else {
+            server = ManagementFactory.getPlatformMBeanServer();
+            serverScope = embedded ? "this vm, server and clients" : "this vm, clients only";
+        }
+    }
+
+    private void sampleServer() {
+        try {
+            threadsEnd = ((Integer)server.getAttribute(new ObjectName("java.lang:type=Threading"),
+                    "ThreadCount")).intValue();
+            CompositeData heap = (CompositeData)server.getAttribute(new ObjectName(
+                    "java.lang:type=Memory"), "HeapMemoryUsage");
+            heapEnd = ((Long)heap.get("used")).longValue();
+            threadsMax = Math.max(threadsMax, threadsEnd);
+            heapMax = Math.max(heapMax, heapEnd);
+        }
+        catch (Exception e) {
+            System.err.println("Could not read the server's threads and heap: " + e);
+        }
+    }
+
+    private String report(double seconds) {
+        Samples latencies = new Samples();
+        int sessions;
+        synchronized (live) {
+            sessions = all.size();
+            for (Session session : all) {
+                latencies.addAll(session.latencies);
+            }
+        }
+        Json json = new Json();
+        json.open(null);
+        json.open("config");
+        json.value("clients", clients).value("host", host).value("port", port);
+        json.value("connection", simple ? "simple" : "impl").value("embedded", embedded);
+        json.value("ratePerClient", rate).value("churnPerSecond", churn);
+        json.value("durationSeconds", seconds);
+        json.close();
+        json.open("sessions");
+        json.value("started", sessions).value("loginFailures", loginFailures.get());
+        json.value("churned", churned.get());
+        loginTimes.percentiles(json, "loginMillis", 1e6);
+        json.close();
+        json.open("messages");
+        json.value("sent", sent.get()).value("delivered", delivered.get());
+        json.value("failed", failed.get()).value("received", received.get());
+        json.value("ignored", ignored.get());
+        json.value("sentPerSecond", sent.get() / seconds);
+        json.value("receivedPerSecond", received.get() / seconds);
+        json.close();
+        latencies.percentiles(json, "latencyMillis", 1e6);
+        json.open("server");
+        json.value("scope", serverScope).value("threadsMax", threadsMax);
+        json.value("threadsEnd", threadsEnd).value("heapUsedMaxBytes", heapMax);
+        json.value("heapUsedEndBytes", heapEnd);
+        json.close();
+        json.close();
+        return json.toString();
+    }
+
+    /** One simulated user. Its run() says a line. */
+    private final class Session implements ChatView, ChatClient.SendListener, Runnable {
+        private final String name = "load" + nextName.incrementAndGet();
+        private final ChatClient client;
+        /** Set when the first roster has arrived. */
+        private volatile boolean up = false;
+        private volatile long loginStart;
+        private ScheduledFuture<?> talking;
+        /** Nanoseconds from sending to receiving, while measuring. */
+        final Samples latencies = new Samples();
+
+        Session() {
+            Connection conn = simple ? new SimpleConnection(0) : new ConnectionImpl(nextLocalPort
+                    .getAndIncrement());
+            client = new ChatClient(new CompressedConnection(conn), host, port, name, this);
+            client.setSendListener(this);
+        }
+
+        boolean login() {
+            loginStart = System.nanoTime();
+            for (int attempt = 0; attempt < LOGIN_ATTEMPTS; attempt++) {
+                if (client.login(name)) return true;
+                try {
+                    Thread.sleep(200L << attempt);
+                }
+                catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        public void run() {
+            if (!up || !measuring) return;
+            sent.incrementAndGet();
+            client.sendMessage(mark + sequence.incrementAndGet() + ":" + System.nanoTime());
+        }
+
+        void stop() {
+            if (talking != null) talking.cancel(false);
+            client.disconnect();
+        }
+
+        public void addMessage(String message, String from) {
+            if (!measuring || !message.startsWith(MARK)) return;
+            long now = System.nanoTime();
+            int colon = message.indexOf(':', mark.length());
+            if (!message.startsWith(mark) || colon < 0) {
+                ignored.incrementAndGet(); // Another run's line.
+                return;
+            }
+            long seq, time;
+            try {
+                seq = Long.parseLong(message.substring(mark.length(), colon));
+                time = Long.parseLong(message.substring(colon + 1));
+            }
+            catch (NumberFormatException e) {
+                ignored.incrementAndGet();
+                return;
+            }
+            // A line sent before this user logged on can only be a replay.
+            if (seq < 1 || seq > sequence.get() || time - loginStart < 0) {
+                ignored.incrementAndGet();
+                return;
+            }
+            latencies.add(now - time);
+            received.incrementAndGet();
+        }
+
+        public void updateUserList(String[] users) {
+            if (up) return;
+            up = true;
+            loginTimes.add(System.nanoTime() - loginStart);
+        }
+
+        public void delivered(long id, String text) {
+            delivered.incrementAndGet();
+        }
+
+        public void failed(long id, String text, IOException cause) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /** A growing list of longs. */
+    private static final class Samples {
+        private long[] values = new long[64];
+        private int count = 0;
+
+        synchronized void add(long value) {
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = value;
+        }
+
+        synchronized void addAll(Samples other) {
+            synchronized (other) {
+                for (int i = 0; i < other.count; i++) {
+                    add(other.values[i]);
+                }
+            }
+        }
+
+        /** Write count and percentiles as an object, each value divided by unit. */
+        synchronized void percentiles(Json json, String name, double unit) {
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            json.open(name);
+            json.value("samples", count);
+            if (count > 0) {
+                json.value("p50", sorted[index(0.50)] / unit);
+                json.value("p90", sorted[index(0.90)] / unit);
+                json.value("p99", sorted[index(0.99)] / unit);
+                json.value("p999", sorted[index(0.999)] / unit);
+                json.value("max", sorted[count - 1] / unit);
+            }
+            json.close();
+        }
+
+        private int index(double quantile) {
+            return Math.max(0, (int)Math.ceil(quantile * count) - 1);
+        }
+    }
+
+    /** Just enough JSON for the report, indented. */
+    private static final class Json {
+        private final StringBuilder sb = new StringBuilder();
+        private int depth = 0;
+        private boolean first = true;
+
+        void open(String name) {
+            key(name);
+            sb.append('{');
+            depth++;
+            first = true;
+        }
+
+        void close() {
+            depth--;
+            newline();
+            sb.append('}');
+            first = false;
+        }
+
+        Json value(String name, long value) {
+            key(name);
+            sb.append(value);
+            return this;
+        }
+
+        Json value(String name, double value) {
+            key(name);
+            sb.append(String.format(Locale.ROOT, "%.3f", Double.valueOf(value)));
+            return this;
+        }
+
+        Json value(String name, boolean value) {
+            key(name);
+            sb.append(value);
+            return this;
+        }
+
+        Json value(String name, String value) {
+            key(name);
+            quote(value);
+            return this;
+        }
+
+        private void key(String name) {
+            if (depth > 0) {
+                if (!first) sb.append(',');
+                newline();
+            }
+            first = false;
+            if (name != null) {
+                quote(name);
+                sb.append(": ");
+            }
+        }
+
+        private void newline() {
+            sb.append('\n');
+            for (int i = 0; i < depth; i++) {
+                sb.append("  ");
+            }
+        }
+
+        private void quote(String s) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < ' ') sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package no.ntnu.fp.net.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.LoopbackTransport;
+import no.ntnu.fp.net.co.NetworkEmulator;
+import no.ntnu.fp.net.co.SimpleConnection;
+
+/**
+ * Throughput and latency of Connection.send() for {@link ConnectionImpl}
+ * over an emulated network, and for {@link SimpleConnection} over local TCP.
+ * <br>
+ * <br>
+ * ConnectionImpl runs over a {@link LoopbackTransport} wrapped in a
+ * {@link NetworkEmulator} with a fixed seed, so runs with the same loss rate
+ * see the same losses and can be compared with each other. Loss only hits
+ * data packets, as with onlydata in settings.xml, so the handshake does not
+ * fail before measuring starts.
+ */
+public class ConnectionBenchmark {
+
+    /** Seed for the emulated network. Change it and results are not comparable. */
+    public static final long SEED = 20120316L;
+
+    /** Each case gets its own ports, as closed ports may still see stray packets. */
+    private static int nextPort = 20000;
+
+    /**
+     * @param size
+     *            length of the message.
+     * @return a message of the given length.
+     */
+    static String payload(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append((char)('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param sizes
+     *            message sizes.
+     * @param lossRates
+     *            loss rates for ConnectionImpl.
+     * @return one case per connection type, size and loss rate.
+     */
+    public static List<Benchmark> cases(int[] sizes, double[] lossRates) {
+        List<Benchmark> cases = new ArrayList<Benchmark>();
+        for (int size : sizes) {
+            for (double loss : lossRates) {
+                cases.add(new ConnectionImplSend(size, loss));
+            }
+        }
+        for (int size : sizes) {
+            cases.add(new SimpleConnectionSend(size));
+        }
+        return cases;
+    }
+
+    /** Receives and throws away everything on a connection. */
+    private static class Drain extends Thread {
+        private final Connection listener;
+        private volatile Connection connection;
+
+        public Drain(Connection listener) {
+            super("bench-drain");
+            this.listener = listener;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                connection = listener.accept();
+                while (true) {
+                    connection.receive();
+                }
+            }
+            catch (IOException e) {
+                // Closed by the client, the case is over.
+            }
+        }
+    }
+
+    private static class ConnectionImplSend extends Benchmark {
+        private final String message;
+        private final double loss;
+        private NetworkEmulator network;
+        private Connection client;
+
+        public ConnectionImplSend(int size, double loss) {
+            super("ConnectionImpl.send/loss=" + loss + "/size=" + size);
+            this.message = payload(size);
+            this.loss = loss;
+            warmupSamples = 20;
+            samples = 300;
+        }
+
+        protected void setUp() throws Exception {
+            network = new NetworkEmulator(new LoopbackTransport(), SEED);
+            network.setLoss(loss);
+            network.setOnlyData(true);
+            int serverPort = nextPort++;
+            new Drain(new ConnectionImpl(serverPort, network)).start();
+            client = new ConnectionImpl(nextPort++, network);
+            client.connect(InetAddress.getLocalHost(), serverPort);
+        }
+
+        protected void operation() {
+            try {
+                client.send(message);
+            }
+            catch (IOException e) {
+                failed();
+            }
+        }
+
+        protected void tearDown() throws Exception {
+            if (client != null) client.close();
+            if (network != null) network.shutdown();
+        }
+    }
+
+    private static class SimpleConnectionSend extends Benchmark {
+        private final String message;
+        private Connection client;
+
+        public SimpleConnectionSend(int size) {
+            super("SimpleConnection.send/size=" + size);
+            this.message = payload(size);
+            warmupSamples = 1000;
+            samples = 10000;
+        }
+
+        protected void setUp() throws Exception {
+            int serverPort = nextPort++;
+            new Drain(new SimpleConnection(serverPort)).start();
+            client = new SimpleConnection(nextPort++);
+            // The server socket is opened by accept() on the drain thread.
+            for (int tries = 0;; tries++) {
+                try {
+                    client.connect(InetAddress.getLocalHost(), serverPort);
+                    break;
+                }
+                catch (IOException e) {
+                    if (tries == 50) throw e;
+                    Thread.sleep(20);
+                }
+            }
+        }
+
+        protected void operation() throws IOException {
+            client.send(message);
+        }
+
+        protected void tearDown() throws Exception {
+            if (client != null) client.close();
+        }
+    }
+}
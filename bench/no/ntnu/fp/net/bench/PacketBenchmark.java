@@ -0,0 +1,78 @@
+package no.ntnu.fp.net.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.LoopbackTransport;
+
+/**
+ * Micro-benchmarks of the per packet work in the connection layer: building
+ * data and internal packets, and checking checksums.
+ */
+public class PacketBenchmark {
+
+    /** Gives the benchmarks access to the protected packet methods. */
+    private static class Probe extends ConnectionImpl {
+        public Probe() {
+            super(9999, new LoopbackTransport());
+            remoteAddress = "127.0.0.1";
+            remotePort = 9998;
+        }
+
+        KtnDatagram data(String payload) {
+            return constructDataPacket(payload);
+        }
+
+        KtnDatagram internal(Flag flag) {
+            return constructInternalPacket(flag);
+        }
+
+        boolean valid(KtnDatagram packet) {
+            return isValid(packet);
+        }
+    }
+
+    /** Keeps results reachable so the JIT can not remove the work. */
+    static volatile Object sink;
+
+    /**
+     * @param sizes
+     *            payload sizes to benchmark.
+     * @return one case per operation and size.
+     */
+    public static List<Benchmark> cases(int[] sizes) {
+        List<Benchmark> cases = new ArrayList<Benchmark>();
+        final Probe probe = new Probe();
+        for (final int size : sizes) {
+            final String payload = ConnectionBenchmark.payload(size);
+            cases.add(micro(new Benchmark("constructDataPacket/size=" + size) {
+                protected void operation() {
+                    sink = probe.data(payload);
+                }
+            }));
+            final KtnDatagram packet = probe.data(payload);
+            packet.setChecksum(packet.calculateChecksum());
+            cases.add(micro(new Benchmark("isValid/size=" + size) {
+                protected void operation() {
+                    sink = probe.valid(packet) ? Boolean.TRUE : Boolean.FALSE;
+                }
+            }));
+        }
+        cases.add(micro(new Benchmark("constructInternalPacket/ACK") {
+            protected void operation() {
+                sink = probe.internal(Flag.ACK);
+            }
+        }));
+        return cases;
+    }
+
+    private static Benchmark micro(Benchmark b) {
+        b.batch = 1000;
+        b.warmupSamples = 200;
+        b.samples = 1000;
+        return b;
+    }
+}
@@ -0,0 +1,103 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.fp.net.bench.Benchmark;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.separat.protocol.ChatCodec;
+
+/**
+ * Cost of {@link ChatServerCore#broadcast(String)} as the number of users grows.
+ * The users are connected through {@link NullConnection}s, so only the
+ * server's own work per broadcast is measured, not the network. Each user
+ * count is measured twice: the time until broadcast() returns, and the time
+ * until the writer threads have sent the message to every user. <br>
+ * <br>
+ * Lives in the server package to reach broadcast() and addUser().
+ */
+public class BroadcastBenchmark {
+
+    /**
+     * @param userCounts
+     *            number of connected users for each case.
+     * @return two cases per user count.
+     */
+    public static List<Benchmark> cases(int[] userCounts) {
+        List<Benchmark> cases = new ArrayList<Benchmark>();
+        for (final int users : userCounts) {
+            cases.add(broadcast(users, false));
+            cases.add(broadcast(users, true));
+        }
+        return cases;
+    }
+
+    private static Benchmark broadcast(final int users, final boolean untilSent) {
+        String name = untilSent ? "ChatServer.broadcast+send" : "ChatServer.broadcast";
+        return new Benchmark(name + "/users=" + users) {
+            private ChatServerCore server;
+            private final String line = ChatCodec.chat("bench",
+                    "the quick brown fox jumps over the lazy dog");
+
+            {
+                // Set before measure() sizes its arrays, not in setUp().
+                warmupSamples = 200;
+                samples = 2000;
+            }
+
+            protected void setUp() {
+                server = new ChatServerCore(0);
+                for (int i = 0; i < users; i++) {
+                    server.addUser("user" + i, new NullConnection());
+                }
+            }
+
+            protected void operation() {
+                server.broadcast(line);
+                if (untilSent && !server.awaitSent(1000)) failed();
+            }
+
+            protected void tearDown() {
+                if (server != null) server.stop();
+            }
+        };
+    }
+
+    /**
+     * A connected Connection that accepts and forgets everything sent on it,
+     * and never receives anything.
+     */
+    static class NullConnection implements Connection {
+        private volatile long sent;
+
+        public void connect(InetAddress remoteAddress, int remotePort) throws IOException,
+                SocketTimeoutException {
+        }
+
+        public Connection accept() throws IOException, SocketTimeoutException {
+            throw new IOException("NullConnection does not accept.");
+        }
+
+        public void send(String msg) throws ConnectException, IOException {
+            sent += msg.length();
+        }
+
+        public synchronized String receive() throws ConnectException, IOException {
+            while (true) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+
+        public void close() throws IOException {
+        }
+    }
+}
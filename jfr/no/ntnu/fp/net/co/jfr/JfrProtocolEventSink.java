@@ -0,0 +1,182 @@
+package no.ntnu.fp.net.co.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.co.ProtocolEventSink;
+
+/**
+ * Reports protocol events as Java Flight Recorder events, so they show up in
+ * a recording next to garbage collections, safepoints and thread parks.
+ * Loaded by {@link no.ntnu.fp.net.co.ProtocolEvents} when the VM has JFR. <br>
+ * <br>
+ * This source folder needs JDK 11 or later and is kept apart from src, which
+ * targets Java 6. Compile it against the classes from src, e.g.
+ *
+ * <pre>
+ * javac --release 11 -cp bin:lib/ktn_admin_and_a2.jar -d bin jfr/no/ntnu/fp/net/co/jfr/*.java
+ * </pre>
+ *
+ * and record with the settings in jfr/ktn.jfc:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=settings=jfr/ktn.jfc,filename=ktn.jfr ...
+ * </pre>
+ *
+ * Every method creates its event and returns at once unless the recording has
+ * it enabled; the JIT removes the allocation in that case.
+ */
+public class JfrProtocolEventSink implements ProtocolEventSink {
+
+    public void packetSent(KtnDatagram packet) {
+        PacketSent event = new PacketSent();
+        if (!event.isEnabled()) return;
+        event.set(packet);
+        event.commit();
+    }
+
+    public void retransmit(KtnDatagram packet, int attempt) {
+        Retransmit event = new Retransmit();
+        if (!event.isEnabled()) return;
+        event.set(packet);
+        event.attempt = attempt;
+        event.commit();
+    }
+
+    public void ackMatched(KtnDatagram ack, long rttNanos) {
+        AckMatched event = new AckMatched();
+        if (!event.isEnabled()) return;
+        event.set(ack);
+        event.rtt = rttNanos;
+        event.commit();
+    }
+
+    public void ghostDropped(KtnDatagram packet) {
+        GhostDropped event = new GhostDropped();
+        if (!event.isEnabled()) return;
+        event.set(packet);
+        event.commit();
+    }
+
+    public void checksumInvalid(KtnDatagram packet) {
+        ChecksumInvalid event = new ChecksumInvalid();
+        if (!event.isEnabled()) return;
+        event.set(packet);
+        event.commit();
+    }
+
+    public void handshake(String phase, int localPort, long durationNanos, boolean success) {
+        Handshake event = new Handshake();
+        if (!event.isEnabled()) return;
+        event.phase = phase;
+        event.localPort = localPort;
+        event.took = durationNanos;
+        event.success = success;
+        event.commit();
+    }
+
+    public void closed(int localPort, String fromState, long durationNanos) {
+        Close event = new Close();
+        if (!event.isEnabled()) return;
+        event.localPort = localPort;
+        event.fromState = fromState;
+        event.took = durationNanos;
+        event.commit();
+    }
+
+    /** Fields shared by the per-packet events. */
+    @Category({ "KTN", "Connection" })
+    @StackTrace(false)
+    abstract static class PacketEvent extends Event {
+        @Label("Source Port")
+        int srcPort;
+        @Label("Destination Port")
+        int destPort;
+        @Label("Flag")
+        String flag;
+        @Label("Sequence Number")
+        int seq;
+        @Label("Ack Number")
+        int ack;
+        @Label("Payload Length")
+        int length;
+
+        void set(KtnDatagram packet) {
+            srcPort = packet.getSrc_port();
+            destPort = packet.getDest_port();
+            flag = String.valueOf(packet.getFlag());
+            seq = packet.getSeq_nr();
+            ack = packet.getAck();
+            Object payload = packet.getPayload();
+            length = payload instanceof String ? ((String)payload).length() : 0;
+        }
+    }
+
+    @Name("no.ntnu.fp.net.co.PacketSent")
+    @Label("Packet Sent")
+    static class PacketSent extends PacketEvent {
+    }
+
+    @Name("no.ntnu.fp.net.co.Retransmit")
+    @Label("Retransmit")
+    @Description("The retransmit timer sent a data packet again")
+    static class Retransmit extends PacketEvent {
+        @Label("Attempt")
+        int attempt;
+    }
+
+    @Name("no.ntnu.fp.net.co.AckMatched")
+    @Label("Ack Matched")
+    static class AckMatched extends PacketEvent {
+        @Label("Round Trip Time")
+        @Description("-1 if the data packet was retransmitted")
+        @Timespan(Timespan.NANOSECONDS)
+        long rtt;
+    }
+
+    @Name("no.ntnu.fp.net.co.GhostDropped")
+    @Label("Ghost Packet Dropped")
+    static class GhostDropped extends PacketEvent {
+    }
+
+    @Name("no.ntnu.fp.net.co.ChecksumInvalid")
+    @Label("Invalid Checksum")
+    static class ChecksumInvalid extends PacketEvent {
+    }
+
+    @Name("no.ntnu.fp.net.co.Handshake")
+    @Label("Handshake")
+    @Category({ "KTN", "Connection" })
+    @StackTrace(false)
+    static class Handshake extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Local Port")
+        int localPort;
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long took;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("no.ntnu.fp.net.co.Close")
+    @Label("Close")
+    @Category({ "KTN", "Connection" })
+    @StackTrace(false)
+    static class Close extends Event {
+        @Label("Local Port")
+        int localPort;
+        @Label("From State")
+        String fromState;
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long took;
+    }
+}
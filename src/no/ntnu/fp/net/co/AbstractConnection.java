@@ -11,9 +11,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Timer;
 
-import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 import no.ntnu.fp.net.cl.KtnDatagram.Flag;
 import no.ntnu.fp.net.co.ClSocketReceiver;
@@ -93,8 +91,41 @@ public abstract class AbstractConnection implements Connection {
      /** If a FIN has been received, it is stored in disconnectRequest. */
      protected KtnDatagram disconnectRequest;
 
+    /**
+     * How far a sequence or ack number may be from the expected one before
+     * the packet is taken to belong to an earlier connection, see
+     * {@link #inWindow(int, int)}.
+     */
+    protected final static int SEQUENCE_WINDOW = 1024;
+
+    /**
+     * {@link Endpoints} key of remoteAddress and remotePort, and the values it
+     * was computed from. Recomputed by {@link #isFromPeer(KtnDatagram)} when
+     * either changes.
+     */
+    private long remoteKey = Endpoints.UNKNOWN;
+    private String remoteKeyAddress;
+    private int remoteKeyPort = -1;
+
+    /** The connectionless layer all packets are sent and received through. */
+    protected DatagramTransport transport;
+
+    /** Counters for this connection, published over JMX once established. */
+    protected final ConnectionMetrics metrics;
+
     /** Initialize variables to default values. */
     public AbstractConnection() {
+        this(DatagramTransports.getDefault());
+    }
+
+    /**
+     * Initialize variables to default values, using the given transport.
+     *
+     * @param transport
+     *            the connectionless layer to send and receive through.
+     */
+    public AbstractConnection(DatagramTransport transport) {
+        this.transport = transport;
         internalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
         externalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
         isReceiving = false;
@@ -103,6 +134,57 @@ public abstract class AbstractConnection implements Connection {
         lastDataPacketSent = null;
         lastValidPacketReceived = null;
         state = State.CLOSED;
+        metrics = ConnectionMetrics.create(this);
+    }
+
+    /** @return the metrics recorded for this connection. */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Test if a packet came from the remote endpoint of this connection. The
+     * source is compared as one {@link Endpoints} key; only addresses that are
+     * not dotted quads fall back to comparing strings.
+     * 
+     * @param packet
+     *            a received packet.
+     * @return true if it came from remoteAddress and remotePort.
+     */
+    protected boolean isFromPeer(KtnDatagram packet) {
+        if (remoteKeyAddress != remoteAddress || remoteKeyPort != remotePort) {
+            remoteKey = Endpoints.key(remoteAddress, remotePort);
+            remoteKeyAddress = remoteAddress;
+            remoteKeyPort = remotePort;
+        }
+        if (remoteKey != Endpoints.UNKNOWN) return Endpoints.source(packet) == remoteKey;
+        return packet.getSrc_port() == remotePort && packet.getSrc_addr() != null
+                && packet.getSrc_addr().equals(remoteAddress);
+    }
+
+    /**
+     * Test if a sequence or ack number is within {@link #SEQUENCE_WINDOW} of
+     * the expected one, with wrap-around. Packets outside the window are left
+     * over from an earlier connection between the same endpoints and can be
+     * dropped without further checks.
+     * 
+     * @param number
+     *            the number in the packet.
+     * @param expected
+     *            the number this connection expects next.
+     * @return true if number is close to expected.
+     */
+    protected static boolean inWindow(int number, int expected) {
+        int distance = number - expected;
+        return distance >= -SEQUENCE_WINDOW && distance <= SEQUENCE_WINDOW;
+    }
+
+    int getInternalQueueDepth() {
+        return internalQueue.size();
+    }
+
+    int getExternalQueueDepth() {
+        return externalQueue.size();
     }
 
     /**
@@ -188,7 +270,7 @@ public abstract class AbstractConnection implements Connection {
     }
 
     /**
-     * Sends a packet. Hides the underlying ClSocket from the students, and is
+     * Sends a packet. Hides the underlying transport from the students, and is
      * there to clearify that there are not only the other send-methods that
      * exists.
      * 
@@ -196,16 +278,18 @@ public abstract class AbstractConnection implements Connection {
      *            The {@link KtnDatagram} to send.
      * @throws IOException
      *             If thrown by the underlying
-     *             {@link ClSocket#send(KtnDatagram)}.
+     *             {@link DatagramTransport#send(KtnDatagram)}.
      * @throws ClException
      *             If thrown by the underlying
-     *             {@link ClSocket#send(KtnDatagram)}.
+     *             {@link DatagramTransport#send(KtnDatagram)}.
      * @see #sendDataPacketWithRetransmit(KtnDatagram)
      * @see #sendAck(KtnDatagram, boolean)
-     * @see ClSocket#send(KtnDatagram)
+     * @see DatagramTransport#send(KtnDatagram)
      */
     protected synchronized void simplySendPacket(KtnDatagram packet) throws ClException, IOException {
-        new ClSocket().send(packet);
+        transport.send(packet);
+        metrics.packetSent();
+        if (ProtocolEvents.ENABLED) ProtocolEvents.SINK.packetSent(packet);
     }
 
     /**
@@ -222,7 +306,7 @@ public abstract class AbstractConnection implements Connection {
      *         null)
      * @throws IOException
      *             thrown if unable to send packet.
-     * @see no.ntnu.fp.net.cl.ClSocket#send(KtnDatagram)
+     * @see DatagramTransport#send(KtnDatagram)
      */
     protected synchronized KtnDatagram sendDataPacketWithRetransmit(KtnDatagram packet)
             throws IOException {
@@ -242,10 +326,18 @@ public abstract class AbstractConnection implements Connection {
         // Create a timer that sends the packet and retransmits every
         // RETRANSMIT milliseconds until cancelled.
         Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new SendTimer(new ClSocket(), packet), 0, RETRANSMIT);
+        SendTimer sendTimer = new SendTimer(transport, packet, metrics);
+        long start = System.nanoTime();
+        timer.scheduleAtFixedRate(sendTimer, 0, RETRANSMIT);
 
         KtnDatagram ack = receiveAck();
         timer.cancel();
+        // Only time packets sent once, an ack for a resent packet is ambiguous.
+        if (ack != null) {
+            long rtt = sendTimer.getTries() == 1 ? System.nanoTime() - start : -1;
+            if (rtt >= 0) metrics.rtt(rtt);
+            if (ProtocolEvents.ENABLED) ProtocolEvents.SINK.ackMatched(ack, rtt);
+        }
 
         return ack;
     }
@@ -285,16 +377,18 @@ public abstract class AbstractConnection implements Connection {
         ackToSend.setAck(packetToAck.getSeq_nr());
     
         // Send the ack, trying at most `tries' times.
-        Log.writeToLog(ackToSend, "Sending Ack: " + ackToSend.getAck(), "AbstractConnection");
+        CoLog.debug(ackToSend, "AbstractConnection", "Sending Ack");
     
         do {
             try {
-                new ClSocket().send(ackToSend);
+                transport.send(ackToSend);
+                metrics.packetSent();
+                if (ProtocolEvents.ENABLED) ProtocolEvents.SINK.packetSent(ackToSend);
                 sent = true;
             }
             catch (ClException e) {
-                Log.writeToLog(ackToSend, "CLException: Could not establish a "
-                        + "connection to the specified address/port!", "AbstractConnection");
+                CoLog.warn(ackToSend, "AbstractConnection", "CLException: Could not establish a "
+                        + "connection to the specified address/port!");
             }
             catch (ConnectException e) {
                 // Silently ignore: Maybe recipient was processing and didn't
@@ -320,7 +414,8 @@ public abstract class AbstractConnection implements Connection {
      * at the same time.<br>
      * <br>
      * It calls {@link #isValid(KtnDatagram)} on FIN-packets in ESTABLISHED
-     * state, before an EOFException is thrown.
+     * state, before an EOFException is thrown. An interrupt does not cut an
+     * internal wait short, but is kept for the caller, as in receiveAck().
      * 
      * @param internal
      *            true if you want to receive non-external packet, i.e. not a
@@ -379,7 +474,7 @@ public abstract class AbstractConnection implements Connection {
             isReceiving = true;
         }
     
-        Log.writeToLog("Waiting for incoming packet in doReceive()", "AbstractConnection");
+        CoLog.trace("AbstractConnection", "Waiting for incoming packet in doReceive()");
     
         KtnDatagram incomingPacket;
     
@@ -391,19 +486,15 @@ public abstract class AbstractConnection implements Connection {
             // We are waiting for an internal packet, ie. a packet with a flag
             long start = System.currentTimeMillis();
             while (System.currentTimeMillis() - start < TIMEOUT) {
-                ClSocketReceiver receiver = new ClSocketReceiver(myPort);
+                ClSocketReceiver receiver = new ClSocketReceiver(transport, myPort);
                 receiver.start();
                 // Wait at most what is left of the TIMEOUT period for thread to
                 // die, but never less than 1 millisecond
-                try {
-                    long timeout  = TIMEOUT - (System.currentTimeMillis() - start);
-                    receiver.join(Math.max(timeout, 1));
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
+                joinReceiver(receiver, Math.max(TIMEOUT - (System.currentTimeMillis() - start), 1));
     
                 receiver.stopReceive();
                 incomingPacket = receiver.getPacket();
+                if (incomingPacket != null) metrics.packetReceived();
                 if (incomingPacket == null) {
                     // No packet was received
                     synchronized (this) {
@@ -416,8 +507,8 @@ public abstract class AbstractConnection implements Connection {
                     // We have a packet
                     if (incomingPacket.getFlag() != Flag.NONE) {
                         // Packet is internal
-                        Log.writeToLog("Received an internal packet in doReceive",
-                                "AbstractConnection");
+                        CoLog.debug(incomingPacket, "AbstractConnection",
+                                "Received an internal packet in doReceive");
     
                         if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
                             // A FIN-packet has arrived in established state,
@@ -442,8 +533,8 @@ public abstract class AbstractConnection implements Connection {
                     else {
                         // Packet was meant for the application, continue
                         // listening until timeout.
-                        Log.writeToLog("Received an external packet in doReceive",
-                                "AbstractConnection");
+                        CoLog.debug(incomingPacket, "AbstractConnection",
+                                "Received an external packet in doReceive");
     
                         synchronized (this) {
                             synchronized (this) {
@@ -465,7 +556,8 @@ public abstract class AbstractConnection implements Connection {
         else {
             // We are waiting for a packet to an external application, ie. a
             // packet with no flags. Can possibly wait forever.
-            incomingPacket = new ClSocket().receive(myPort);
+            incomingPacket = transport.receive(myPort);
+            if (incomingPacket != null) metrics.packetReceived();
             if (incomingPacket == null) {
                 // We should get a packet, try again.
                 synchronized (this) {
@@ -478,7 +570,7 @@ public abstract class AbstractConnection implements Connection {
                 // We have a packet
                 if (incomingPacket.getFlag() != Flag.NONE) {
                     // Packet is internal
-                    Log.writeToLog("Received an internal packet in doReceive", "AbstractConnection");
+                    CoLog.debug(incomingPacket, "AbstractConnection", "Received an internal packet in doReceive");
     
                     if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
                         // A FIN-packet has arrived in established state,
@@ -502,7 +594,7 @@ public abstract class AbstractConnection implements Connection {
                 }
                 else {
                     // Packet was meant for the application, yei!
-                    Log.writeToLog("Received an external packet in doReceive", "AbstractConnection");
+                    CoLog.debug(incomingPacket, "AbstractConnection", "Received an external packet in doReceive");
     
                     synchronized (this) {
                         isReceiving = false;
@@ -514,10 +606,32 @@ public abstract class AbstractConnection implements Connection {
         }
     }
 
+    /**
+     * Wait for a receiver thread to die, at most the given time. An interrupt
+     * does not cut the wait short, so an ack that is on its way is not lost;
+     * it is set again on the calling thread when the wait is over.
+     */
+    private static void joinReceiver(Thread receiver, long millis) {
+        long end = System.currentTimeMillis() + millis;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                receiver.join(Math.max(end - System.currentTimeMillis(), 1));
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+                if (System.currentTimeMillis() >= end) break;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
     /**
      * Waits for an ACK or SYN_ACK. Blocks until the ack is recieved. Returns
      * null if no ack recieved after the specified time, see
-     * {@link AbstractConnection#TIMEOUT}. <br>
+     * {@link AbstractConnection#TIMEOUT}. An interrupt does not end the wait
+     * early, but is kept for the caller. <br>
      * <br>
      * If a FIN-packet is received and the state is not ESTABLISHED, this will
      * also be returned.<br>
@@ -570,25 +684,22 @@ public abstract class AbstractConnection implements Connection {
             isReceiving = true;
         }
 
-        Log.writeToLog("Waiting for incoming packet in receiveAck()", "AbstractConnection");
+        CoLog.trace("AbstractConnection", "Waiting for incoming packet in receiveAck()");
 
         KtnDatagram incomingPacket;
 
         // We are waiting for an ack or syn_ack packet
         long start = System.currentTimeMillis();
         while (System.currentTimeMillis() - start < TIMEOUT) {
-            ClSocketReceiver receiver = new ClSocketReceiver(myPort);
+            ClSocketReceiver receiver = new ClSocketReceiver(transport, myPort);
             receiver.start();
             // Wait at most what is left of the TIMEOUT period for thread to
             // die, but never less than 1 millisecond
-            try {
-                receiver.join(Math.max(TIMEOUT - (System.currentTimeMillis() - start), 1));
-            }
-            catch (InterruptedException e) { /* do nothing */
-            }
+            joinReceiver(receiver, Math.max(TIMEOUT - (System.currentTimeMillis() - start), 1));
 
             receiver.stopReceive();
             incomingPacket = receiver.getPacket();
+            if (incomingPacket != null) metrics.packetReceived();
             if (incomingPacket == null) {
                 // No packet was received
                 synchronized (this) {
@@ -601,8 +712,8 @@ public abstract class AbstractConnection implements Connection {
                 // We have a packet
                 if (incomingPacket.getFlag() != Flag.NONE) {
                     // Packet is internal
-                    Log.writeToLog("Received an internal packet in receiveAck",
-                            "AbstractConnection");
+                    CoLog.debug(incomingPacket, "AbstractConnection",
+                            "Received an internal packet in receiveAck");
 
                     if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
                         // A FIN-packet has arrived in established state,
@@ -636,8 +747,8 @@ public abstract class AbstractConnection implements Connection {
                 else {
                     // Packet was meant for the application, continue
                     // listening until timeout.
-                    Log.writeToLog("Received an external packet in receiveAck",
-                            "AbstractConnection");
+                    CoLog.debug(incomingPacket, "AbstractConnection",
+                            "Received an external packet in receiveAck");
 
                     synchronized (this) {
                         synchronized (this) {
@@ -2,8 +2,6 @@ package no.ntnu.fp.net.co;
 
 import java.io.IOException;
 
-import no.ntnu.fp.net.admin.Log;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 
 /**
@@ -13,32 +11,32 @@ import no.ntnu.fp.net.cl.KtnDatagram;
 class ClSocketReceiver extends Thread {
 
     /** Hold a packet. */
-    private KtnDatagram packet = null;
-    /** Connection to listen on. */
-    private ClSocket connection;
+    private volatile KtnDatagram packet = null;
+    /** Transport to listen on. */
+    private DatagramTransport transport;
     /** Port to listen on. */
     private int port = -1;
 
     /**
      * Construct a receiver for a given port.
      * 
+     * @param transport
+     *            Transport to receive through.
      * @param port
      *            Port to listen for packets on.
      */
-    public ClSocketReceiver(int port) {
+    public ClSocketReceiver(DatagramTransport transport, int port) {
+        this.transport = transport;
         this.port = port;
     }
 
     /** Try to receive a packet. */
     public void run() {
         try {
-            connection = new ClSocket();
-            packet = connection.receive(port);
-            connection = null;
+            packet = transport.receive(port);
         }
         catch (Exception e) {
-            Log.writeToLog("Exception while receiving: " + e.getMessage(), "ClSocketReceiver");
-            e.printStackTrace();
+            CoLog.warn("ClSocketReceiver", "Exception while receiving: {}", e);
         }
     }
 
@@ -50,7 +48,7 @@ class ClSocketReceiver extends Thread {
     /** Stop listening for packet. */
     public void stopReceive() {
         try {
-            if (connection != null) connection.cancelReceive();
+            if (packet == null) transport.cancelReceive(port);
         }
         catch (IOException e) {
             // Ignore.
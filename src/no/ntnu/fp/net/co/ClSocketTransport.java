@@ -0,0 +1,45 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.ClSocket;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * {@link DatagramTransport} on top of {@link ClSocket}, i.e. the A2 layer
+ * with its configurable errors. This is the default transport.
+ */
+public class ClSocketTransport implements DatagramTransport {
+
+    /** The socket each port is currently receiving on, so it can be cancelled. */
+    private final ConcurrentMap<Integer, ClSocket> receiving = new ConcurrentHashMap<Integer, ClSocket>();
+
+    public void send(KtnDatagram packet) throws ClException, IOException {
+        new ClSocket().send(packet);
+    }
+
+    public KtnDatagram receive(int port) throws IOException {
+        ClSocket socket = new ClSocket();
+        receiving.put(port, socket);
+        try {
+            return socket.receive(port);
+        }
+        finally {
+            // Only our own entry; a newer receive on the port may have replaced it.
+            receiving.remove(port, socket);
+        }
+    }
+
+    public void cancelReceive(int port) throws IOException {
+        ClSocket socket = receiving.get(port);
+        if (socket != null) socket.cancelReceive();
+    }
+
+    /** A ClSocket is opened per receive, so only a blocked receive is held. */
+    public void release(int port) throws IOException {
+        cancelReceive(port);
+    }
+}
@@ -0,0 +1,302 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Logging for the co package, kept off the packet hot path. <br>
+ * <br>
+ * Messages below the current level are thrown away after a single compare,
+ * before anything is formatted. Messages at or above it are put in a
+ * fixed-size lock-free ring buffer, and a background thread formats them and
+ * hands them to {@link Log}. The thread is parked while the buffer is empty
+ * and unparked by the next message, so it costs nothing while idle. The
+ * calling thread never formats, never does I/O and never blocks; if the ring
+ * buffer is full the message is dropped and counted. <br>
+ * <br>
+ * Messages are formatted lazily: every "{}" in the format is replaced by the
+ * next argument, on the writer thread. Arguments must therefore not be changed
+ * after the call. Callers that would have to box or concatenate to build the
+ * arguments should check {@link #isEnabled(Level)} first. <br>
+ * <br>
+ * The level is read from the system property {@value #PROPERTY} (TRACE, DEBUG,
+ * INFO, WARN, ERROR or OFF) and defaults to INFO.
+ */
+public final class CoLog {
+
+    /** Log levels, from most to least verbose. */
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /** System property holding the level. */
+    public static final String PROPERTY = "ktn.log.level";
+
+    /** Number of slots in the ring buffer, must be a power of two. */
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile int threshold = parseLevel(System.getProperty(PROPERTY)).ordinal();
+
+    /**
+     * Sequence number per slot: equal to the position when the slot is free
+     * for the producer claiming that position, position + 1 when it holds a
+     * message for the writer.
+     */
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final Entry[] entries = new Entry[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    /** Next position for the writer. Guarded by the entries monitor. */
+    private static long head = 0;
+    /** Value of dropped when it was last written to the log. */
+    private static long droppedReported = 0;
+    /** Stands for an argument that was not passed, as opposed to a null one. */
+    private static final Object NONE = new Object();
+
+    /** Formats and writes the messages; parked while the buffer is empty. */
+    private static final Thread writer;
+    /** Set by the writer before it parks, so put() knows to unpark it. */
+    private static volatile boolean parked = false;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+            entries[i] = new Entry();
+        }
+        writer = new Thread("CoLog-writer") {
+            public void run() {
+                while (true) {
+                    if (drain() > 0) continue;
+                    parked = true;
+                    // put() publishes before it reads parked, so a message
+                    // published before parked was set is seen here.
+                    if (!ready()) LockSupport.park(this);
+                    parked = false;
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    private CoLog() {
+    }
+
+    /**
+     * @param level
+     *            a level.
+     * @return true if messages at this level are logged.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * @param level
+     *            the new level, messages below it are thrown away.
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /** @return number of messages dropped because the ring buffer was full. */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public static void trace(String entity, String format) {
+        if (Level.TRACE.ordinal() >= threshold) put(Level.TRACE, null, entity, format, NONE, NONE);
+    }
+
+    public static void trace(String entity, String format, Object a1) {
+        if (Level.TRACE.ordinal() >= threshold) put(Level.TRACE, null, entity, format, a1, NONE);
+    }
+
+    public static void trace(String entity, String format, Object a1, Object a2) {
+        if (Level.TRACE.ordinal() >= threshold) put(Level.TRACE, null, entity, format, a1, a2);
+    }
+
+    public static void debug(String entity, String format) {
+        if (Level.DEBUG.ordinal() >= threshold) put(Level.DEBUG, null, entity, format, NONE, NONE);
+    }
+
+    public static void debug(String entity, String format, Object a1) {
+        if (Level.DEBUG.ordinal() >= threshold) put(Level.DEBUG, null, entity, format, a1, NONE);
+    }
+
+    public static void debug(String entity, String format, Object a1, Object a2) {
+        if (Level.DEBUG.ordinal() >= threshold) put(Level.DEBUG, null, entity, format, a1, a2);
+    }
+
+    /** Log a packet at DEBUG level; the packet's fields are logged as by {@link Log}. */
+    public static void debug(KtnDatagram packet, String entity, String format) {
+        if (Level.DEBUG.ordinal() >= threshold) put(Level.DEBUG, packet, entity, format, NONE, NONE);
+    }
+
+    public static void debug(KtnDatagram packet, String entity, String format, Object a1) {
+        if (Level.DEBUG.ordinal() >= threshold) put(Level.DEBUG, packet, entity, format, a1, NONE);
+    }
+
+    public static void info(String entity, String format) {
+        if (Level.INFO.ordinal() >= threshold) put(Level.INFO, null, entity, format, NONE, NONE);
+    }
+
+    public static void info(String entity, String format, Object a1) {
+        if (Level.INFO.ordinal() >= threshold) put(Level.INFO, null, entity, format, a1, NONE);
+    }
+
+    public static void warn(String entity, String format) {
+        if (Level.WARN.ordinal() >= threshold) put(Level.WARN, null, entity, format, NONE, NONE);
+    }
+
+    public static void warn(String entity, String format, Object a1) {
+        if (Level.WARN.ordinal() >= threshold) put(Level.WARN, null, entity, format, a1, NONE);
+    }
+
+    public static void warn(String entity, String format, Object a1, Object a2) {
+        if (Level.WARN.ordinal() >= threshold) put(Level.WARN, null, entity, format, a1, a2);
+    }
+
+    public static void warn(KtnDatagram packet, String entity, String format) {
+        if (Level.WARN.ordinal() >= threshold) put(Level.WARN, packet, entity, format, NONE, NONE);
+    }
+
+    public static void error(String entity, String format, Object a1) {
+        if (Level.ERROR.ordinal() >= threshold) put(Level.ERROR, null, entity, format, a1, NONE);
+    }
+
+    /**
+     * Write everything in the ring buffer before returning. Called at
+     * shutdown; may also be called by tests and tools.
+     */
+    public static void flush() {
+        synchronized (entries) {
+            while (drain() > 0) {
+                // Keep going until empty.
+            }
+        }
+    }
+
+    private static void put(Level level, KtnDatagram packet, String entity, String format,
+            Object a1, Object a2) {
+        long pos;
+        Entry entry;
+        while (true) {
+            pos = tail.get();
+            int slot = (int)(pos & MASK);
+            long seq = sequences.get(slot);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    entry = entries[slot];
+                    break;
+                }
+            }
+            else if (seq < pos) {
+                dropped.incrementAndGet(); // Full: the writer has not freed this slot yet.
+                return;
+            }
+            // Otherwise another producer claimed pos first, try the next one.
+        }
+        entry.level = level;
+        entry.packet = packet;
+        entry.entity = entity;
+        entry.format = format;
+        entry.a1 = a1;
+        entry.a2 = a2;
+        sequences.set((int)(pos & MASK), pos + 1);
+        if (parked) LockSupport.unpark(writer);
+    }
+
+    /** @return true if the writer has a message to write. */
+    private static boolean ready() {
+        synchronized (entries) {
+            return sequences.get((int)(head & MASK)) == head + 1;
+        }
+    }
+
+    /** Write the messages that are ready. Only the writer or flush() call this. */
+    private static int drain() {
+        synchronized (entries) {
+            int written = 0;
+            while (true) {
+                int slot = (int)(head & MASK);
+                if (sequences.get(slot) != head + 1) break;
+                Entry entry = entries[slot];
+                String message = format(entry);
+                KtnDatagram packet = entry.packet;
+                String entity = entry.entity;
+                entry.clear();
+                sequences.lazySet(slot, head + CAPACITY);
+                head++;
+                write(packet, message, entity);
+                written++;
+            }
+            long lost = dropped.get() - droppedReported;
+            if (lost > 0) {
+                droppedReported += lost;
+                Log.writeToLog("Log buffer full, dropped " + lost + " messages", "CoLog");
+            }
+            return written;
+        }
+    }
+
+    private static void write(KtnDatagram packet, String message, String entity) {
+        try {
+            if (packet != null) Log.writeToLog(packet, message, entity);
+            else Log.writeToLog(message, entity);
+        }
+        catch (RuntimeException e) {
+            System.err.println("CoLog: could not write log: " + e);
+        }
+    }
+
+    private static String format(Entry entry) {
+        String format = entry.format;
+        if (entry.level.ordinal() >= Level.WARN.ordinal()) format = entry.level + ": " + format;
+        if (entry.a1 == NONE || format.indexOf("{}") < 0) return format;
+        Object[] args = { entry.a1, entry.a2 };
+        StringBuilder sb = new StringBuilder(format.length() + 32);
+        int arg = 0, from = 0, at;
+        while ((at = format.indexOf("{}", from)) >= 0 && arg < args.length && args[arg] != NONE) {
+            sb.append(format, from, at).append(args[arg++]);
+            from = at + 2;
+        }
+        sb.append(format, from, format.length());
+        return sb.toString();
+    }
+
+    private static Level parseLevel(String name) {
+        if (name == null) return Level.INFO;
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    /** One slot of the ring buffer. Reused, so logging does not allocate. */
+    private static class Entry {
+        Level level;
+        KtnDatagram packet;
+        String entity;
+        String format;
+        Object a1, a2;
+
+        void clear() {
+            packet = null;
+            format = null;
+            a1 = a2 = null;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package no.ntnu.fp.net.co;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link Connection} that compresses large messages before handing them to
+ * another Connection, e.g. a {@link ConnectionImpl} or a
+ * {@link SimpleConnection}. <br>
+ * <br>
+ * Both ends of a connection must be wrapped: right after connect() the
+ * connecting side sends an offer naming the preset dictionary it knows, and a
+ * plain peer would take the offer for an application message. The accepting
+ * side answers the offer, and each side only compresses once it knows the
+ * peer can decode. If both sides have the same preset dictionary it is used
+ * for every compressed message, which makes even short chat lines worth
+ * compressing. <br>
+ * <br>
+ * Control frames start with {@link #ESCAPE} followed by a type character.
+ * Compressed data is raw Deflate, Base64 encoded so it survives any String
+ * transport unchanged. Messages shorter than the threshold are sent as they
+ * are, except that a message starting with ESCAPE is always sent in a
+ * {@link #PLAIN} frame, also before negotiation has finished, so the peer
+ * never takes it for a control frame.
+ */
+public class CompressedConnection implements Connection, SharedMessageSender {
+
+    /** Messages shorter than this are never compressed. */
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    /**
+     * Largest message, in UTF-8 bytes, a compressed frame may inflate to. The
+     * same limit as DataOutputStream.writeUTF(), so no real message is near it.
+     */
+    private static final int MAX_INFLATED = 65535;
+
+    /**
+     * Preset dictionary with the phrases the chat server repeats the most. Only
+     * used if the peer has the same dictionary.
+     */
+    public static final String CHAT_DICTIONARY = " disconnected (too slow). changed nick to "
+            + " joined.";
+
+    private static final char ESCAPE = '\u0001';
+    private static final char OFFER = 'O';
+    private static final char ACCEPT = 'A';
+    private static final char DEFLATE = 'Z';
+    private static final char DEFLATE_DICT = 'D';
+    private static final char PLAIN = 'P';
+
+    private final Connection connection;
+    private final int threshold;
+    private final byte[] dictionary;
+    private final String dictionaryId;
+    /** Keys of frames kept in a {@link SharedMessage}, see send(SharedMessage). */
+    private final String deflateKey;
+    private final String dictionaryKey;
+    private final CompressionStats stats = new CompressionStats();
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] buffer = new byte[4096];
+
+    /** True when the peer has said it can decode compressed frames. */
+    private volatile boolean peerDecodes = false;
+    /** True when the peer has the same preset dictionary as us. */
+    private volatile boolean sharedDictionary = false;
+    /** Set by close(), under both the deflater and the inflater lock. */
+    private boolean ended = false;
+
+    /**
+     * Compress with the default threshold and the chat dictionary.
+     *
+     * @param connection
+     *            the connection to send compressed messages over.
+     */
+    public CompressedConnection(Connection connection) {
+        this(connection, DEFAULT_THRESHOLD, CHAT_DICTIONARY);
+    }
+
+    /**
+     * @param connection
+     *            the connection to send compressed messages over.
+     * @param threshold
+     *            messages shorter than this are sent uncompressed.
+     * @param dictionary
+     *            preset dictionary, or null to not use one.
+     */
+    public CompressedConnection(Connection connection, int threshold, String dictionary) {
+        this.connection = connection;
+        this.threshold = threshold;
+        this.dictionary = dictionary == null ? null : utf8(dictionary);
+        if (this.dictionary != null) {
+            Adler32 adler = new Adler32();
+            adler.update(this.dictionary);
+            dictionaryId = Long.toHexString(adler.getValue());
+        }
+        else {
+            dictionaryId = "";
+        }
+        deflateKey = "" + DEFLATE + threshold;
+        dictionaryKey = "" + DEFLATE_DICT + threshold + ":" + dictionaryId;
+    }
+
+    /** @return compression counters for this connection. */
+    public CompressionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Connect, and offer compression to the remote side.
+     *
+     * @see Connection#connect(InetAddress, int)
+     */
+    public void connect(InetAddress remoteAddress, int remotePort) throws IOException,
+            SocketTimeoutException {
+        connection.connect(remoteAddress, remotePort);
+        connection.send("" + ESCAPE + OFFER + dictionaryId);
+    }
+
+    /**
+     * Accept a connection. The returned connection answers the compression
+     * offer when it receives it.
+     *
+     * @see Connection#accept()
+     */
+    public Connection accept() throws IOException, SocketTimeoutException {
+        Connection accepted = connection.accept();
+        if (accepted == null) return null;
+        String dict = dictionary == null ? null : new String(dictionary, "UTF-8");
+        return new CompressedConnection(accepted, threshold, dict);
+    }
+
+    /**
+     * Send a message, compressed if it is long enough and the peer can decode
+     * it.
+     *
+     * @see Connection#send(String)
+     */
+    public void send(String msg) throws ConnectException, IOException {
+        connection.send(encode(msg));
+    }
+
+    /**
+     * Send a shared message. The frame for it is made by the first connection
+     * with the same threshold and dictionary and kept in the message, so a
+     * broadcast is compressed once, not once per receiver.
+     *
+     * @see SharedMessageSender#send(SharedMessage)
+     */
+    public void send(SharedMessage msg) throws ConnectException, IOException {
+        if (!peerDecodes) {
+            if (needsEscape(msg.getText())) {
+                connection.send(encode(msg.getText()));
+                return;
+            }
+            stats.plain(msg.getText().length());
+            msg.sendTo(connection);
+            return;
+        }
+        String key = sharedDictionary ? dictionaryKey : deflateKey;
+        SharedMessage frame = msg.frame(key);
+        if (frame == null) {
+            frame = msg.addFrame(key, new SharedMessage(encode(msg.getText())));
+        }
+        else {
+            String text = frame.getText();
+            if (text == msg.getText() || text.charAt(1) == PLAIN) stats.plain(text.length());
+            else stats.compressed(msg.getText().length(), text.length(), 0);
+        }
+        frame.sendTo(connection);
+    }
+
+    /**
+     * Receive the next application message. Negotiation frames are handled
+     * here and never returned.
+     *
+     * @see Connection#receive()
+     */
+    public String receive() throws ConnectException, IOException {
+        while (true) {
+            String frame = connection.receive();
+            if (frame == null || frame.length() < 2 || frame.charAt(0) != ESCAPE) return frame;
+
+            switch (frame.charAt(1)) {
+            case OFFER:
+                sharedDictionary = dictionary != null && frame.substring(2).equals(dictionaryId);
+                peerDecodes = true;
+                connection.send("" + ESCAPE + ACCEPT + (sharedDictionary ? dictionaryId : ""));
+                break;
+            case ACCEPT:
+                sharedDictionary = dictionary != null && frame.substring(2).equals(dictionaryId);
+                peerDecodes = true;
+                break;
+            case DEFLATE:
+                return decompress(frame, false);
+            case DEFLATE_DICT:
+                return decompress(frame, true);
+            case PLAIN:
+                return frame.substring(2);
+            default:
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * Close the underlying connection, and free the native memory held by the
+     * deflater and the inflater.
+     *
+     * @see Connection#close()
+     */
+    public void close() throws IOException {
+        CoLog.info("CompressedConnection", "Compression: {}", stats);
+        try {
+            connection.close();
+        }
+        finally {
+            synchronized (deflater) {
+                synchronized (inflater) {
+                    ended = true;
+                }
+                deflater.end();
+            }
+            synchronized (inflater) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Turn an application message into the frame that is sent. Exposed to the
+     * package so a message can be encoded once and sent to many peers.
+     */
+    String encode(String msg) {
+        if (peerDecodes && msg.length() >= threshold) {
+            long start = CompressionStats.now();
+            String frame = compress(msg);
+            long nanos = CompressionStats.now() - start;
+            if (frame != null && frame.length() < msg.length()) {
+                stats.compressed(msg.length(), frame.length(), nanos);
+                return frame;
+            }
+        }
+        if (needsEscape(msg)) {
+            stats.plain(msg.length() + 2);
+            return "" + ESCAPE + PLAIN + msg;
+        }
+        stats.plain(msg.length());
+        return msg;
+    }
+
+    /** @return true if the message would be taken for a control frame as is. */
+    private static boolean needsEscape(String msg) {
+        return msg.length() > 0 && msg.charAt(0) == ESCAPE;
+    }
+
+    /** @return the compressed frame, or null if the connection is closed. */
+    private String compress(String msg) {
+        byte[] input = utf8(msg);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+        synchronized (deflater) {
+            if (ended) return null;
+            deflater.reset();
+            if (sharedDictionary) deflater.setDictionary(dictionary);
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+        }
+        StringBuilder frame = new StringBuilder(out.size() * 4 / 3 + 6);
+        frame.append(ESCAPE).append(sharedDictionary ? DEFLATE_DICT : DEFLATE);
+        Base64.encode(out.toByteArray(), frame);
+        return frame.toString();
+    }
+
+    private String decompress(String frame, boolean useDictionary) throws IOException {
+        if (useDictionary && dictionary == null)
+            throw new IOException("Peer used a preset dictionary we do not have.");
+        long start = CompressionStats.now();
+        byte[] input = Base64.decode(frame, 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 3);
+        synchronized (inflater) {
+            if (ended) throw new IOException("Connection closed.");
+            inflater.reset();
+            if (useDictionary) inflater.setDictionary(dictionary);
+            inflater.setInput(input);
+            try {
+                byte[] chunk = new byte[4096];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(chunk);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Truncated compressed message.");
+                    if (out.size() + n > MAX_INFLATED)
+                        throw new IOException("Compressed message inflates past " + MAX_INFLATED
+                                + " bytes.");
+                    out.write(chunk, 0, n);
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed message: " + e.getMessage());
+            }
+        }
+        String msg = new String(out.toByteArray(), "UTF-8");
+        stats.decompressed(CompressionStats.now() - start);
+        return msg;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+    /** Minimal Base64 (RFC 4648, with padding), as Java 6 has no public one. */
+    private static class Base64 {
+        private static final char[] ALPHABET =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+        private static final int[] VALUES = new int[128];
+        static {
+            java.util.Arrays.fill(VALUES, -1);
+            for (int i = 0; i < ALPHABET.length; i++) {
+                VALUES[ALPHABET[i]] = i;
+            }
+        }
+
+        static void encode(byte[] data, StringBuilder out) {
+            int i = 0;
+            for (; i + 2 < data.length; i += 3) {
+                int v = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+                out.append(ALPHABET[v >>> 18]).append(ALPHABET[(v >>> 12) & 63])
+                        .append(ALPHABET[(v >>> 6) & 63]).append(ALPHABET[v & 63]);
+            }
+            int left = data.length - i;
+            if (left == 1) {
+                int v = (data[i] & 0xff) << 16;
+                out.append(ALPHABET[v >>> 18]).append(ALPHABET[(v >>> 12) & 63]).append("==");
+            }
+            else if (left == 2) {
+                int v = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+                out.append(ALPHABET[v >>> 18]).append(ALPHABET[(v >>> 12) & 63])
+                        .append(ALPHABET[(v >>> 6) & 63]).append('=');
+            }
+        }
+
+        static byte[] decode(String s, int start) throws IOException {
+            int end = s.length();
+            while (end > start && s.charAt(end - 1) == '=') end--;
+            int chars = end - start;
+            if (chars % 4 == 1) throw new IOException("Corrupt Base64 length.");
+            byte[] out = new byte[chars * 3 / 4];
+            int bits = 0, acc = 0, pos = 0;
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                int v = c < 128 ? VALUES[c] : -1;
+                if (v < 0) throw new IOException("Corrupt Base64 character.");
+                acc = acc << 6 | v;
+                bits += 6;
+                if (bits >= 8) {
+                    bits -= 8;
+                    out[pos++] = (byte)(acc >>> bits);
+                }
+            }
+            return out;
+        }
+    }
+}
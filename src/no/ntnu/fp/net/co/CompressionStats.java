@@ -0,0 +1,95 @@
+package no.ntnu.fp.net.co;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counters for the compression done by one {@link CompressedConnection}.
+ * Sizes are counted in characters as they are handed to the underlying
+ * connection, so the ratio reflects what actually goes out on the wire.
+ */
+public class CompressionStats {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private long messagesCompressed;
+    private long messagesPlain;
+    private long charsBefore;
+    private long charsAfter;
+    private long compressNanos;
+    private long decompressNanos;
+    private long messagesDecompressed;
+
+    /**
+     * Current time used to measure the cost of (de)compressing. This is CPU
+     * time of the current thread where the JVM supports it, otherwise wall
+     * clock time.
+     */
+    static long now() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    synchronized void compressed(int before, int after, long nanos) {
+        messagesCompressed++;
+        charsBefore += before;
+        charsAfter += after;
+        compressNanos += nanos;
+    }
+
+    synchronized void plain(int length) {
+        messagesPlain++;
+        charsBefore += length;
+        charsAfter += length;
+    }
+
+    synchronized void decompressed(long nanos) {
+        messagesDecompressed++;
+        decompressNanos += nanos;
+    }
+
+    public synchronized long getMessagesCompressed() {
+        return messagesCompressed;
+    }
+
+    public synchronized long getMessagesPlain() {
+        return messagesPlain;
+    }
+
+    public synchronized long getMessagesDecompressed() {
+        return messagesDecompressed;
+    }
+
+    /** @return total length of all messages given to send(). */
+    public synchronized long getCharsBefore() {
+        return charsBefore;
+    }
+
+    /** @return total length of all frames passed to the underlying connection. */
+    public synchronized long getCharsAfter() {
+        return charsAfter;
+    }
+
+    /** @return charsAfter / charsBefore, or 1 if nothing has been sent. */
+    public synchronized double getCompressionRatio() {
+        return charsBefore == 0 ? 1.0 : (double)charsAfter / charsBefore;
+    }
+
+    /** @return nanoseconds spent compressing outgoing messages. */
+    public synchronized long getCompressNanos() {
+        return compressNanos;
+    }
+
+    /** @return nanoseconds spent decompressing incoming messages. */
+    public synchronized long getDecompressNanos() {
+        return decompressNanos;
+    }
+
+    public synchronized String toString() {
+        return "compressed=" + messagesCompressed + " plain=" + messagesPlain
+                + " decompressed=" + messagesDecompressed + " chars=" + charsBefore + "->"
+                + charsAfter + " ratio=" + String.format("%.3f", getCompressionRatio())
+                + " compressMicros=" + compressNanos / 1000 + " decompressMicros="
+                + decompressNanos / 1000;
+    }
+}
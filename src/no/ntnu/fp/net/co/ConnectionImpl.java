@@ -5,6 +5,7 @@ package no.ntnu.fp.net.co;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
@@ -18,7 +19,6 @@ import javax.sound.sampled.ReverbType;
 
 //import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
-import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
 import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
@@ -47,10 +47,19 @@ public class ConnectionImpl extends AbstractConnection {
 
 	private int sendTries = 0; //keeps track of how many times we have tried to send a packet and not received answer
 	private static final int MAXSENDTRIES = 2;
-	private int receiveTries = 0; //keeps track of how many times we have tried to receive a packet and not received answer
-	private static final int MAXRECEIVETRIES = 2;
+	private static final int MAXRECEIVETRIES = 2; //how many times receive() waits for a packet and gets none before giving up
 
 	private KtnDatagram lastPacket = null;
+	/** Sequence numbers of the data packets delivered to the application. */
+	private SequenceWindow delivered = new SequenceWindow();
+	/** Sequence number and time of the last repeated ack, see reAck(). */
+	private int lastReAckSeq;
+	private long lastReAckTime = 0;
+	private static final int REACK_INTERVAL = RETRANSMIT / 4;
+
+	/** Endpoint key -> sequence number of SYNs accepted, to drop their retransmissions. */
+	private LongMap acceptedSyns = null;
+	private static final int MAXACCEPTEDSYNS = 4096;
 	/**
 	 * Initialise initial sequence number and setup state machine.
 	 * 
@@ -63,6 +72,21 @@ public class ConnectionImpl extends AbstractConnection {
 		//throw new NotImplementedException();
 	}
 
+	/**
+	 * Initialise a connection that sends and receives through the given
+	 * transport instead of the default one.
+	 * 
+	 * @param myPort
+	 *            - the local port to associate with this connection
+	 * @param transport
+	 *            - the connectionless layer to use, see {@link DatagramTransports}
+	 */
+	public ConnectionImpl(int myPort, DatagramTransport transport) {
+		super(transport);
+		this.myPort = myPort;
+		this.myAddress = getIPv4Address();
+	}
+
 	private String getIPv4Address(){
 		try {
 			return InetAddress.getLocalHost().getHostAddress();
@@ -93,24 +117,30 @@ public class ConnectionImpl extends AbstractConnection {
 		KtnDatagram IPacket = constructInternalPacket(Flag.SYN);
 		// uses a self made method similar to sendDataPacketWithRetransmit() because we need to send a packet even though the state is set to CLOSED
 		//ack = sendPacketWithRetransmitConnect(IPacket);
+		long start = ProtocolEvents.ENABLED ? System.nanoTime() : 0;
 		try{
 			simplySendPacket(IPacket);
 		} catch (ClException e) {
 
-			Log.writeToLog("SimplySendFailed", "ConnectionImpl");
-			e.printStackTrace();
+			CoLog.warn(IPacket, "ConnectionImpl", "simplySendPacket failed");
 		}
 		state = State.SYN_SENT;
 
 		ack = receiveAck();
+		if (ProtocolEvents.ENABLED)
+			ProtocolEvents.SINK.handshake("connect", myPort, System.nanoTime() - start,
+					ack != null && ack.getFlag() == Flag.SYN_ACK);
 		if(ack != null)
 			this.remotePort = ack.getSrc_port();
-		else
+		else{
+			release();
 			throw new SocketTimeoutException();
+		}
 
 		if(ack.getFlag() == Flag.SYN_ACK){
 			//If we received a syn_ack from the right server the connection is established
 			state = State.ESTABLISHED;
+			metrics.register();
 			//System.out.println("Client Established!");
 		}
 		//System.out.println(ack.getFlag());
@@ -126,37 +156,81 @@ public class ConnectionImpl extends AbstractConnection {
 		KtnDatagram ack;
 		state = State.LISTEN;
 		KtnDatagram packet;
+		if(acceptedSyns == null)
+			acceptedSyns = new LongMap(64);
 		do{
+			// Waiting for a SYN ends when the thread is interrupted, at
+			// most one TIMEOUT later. A handshake that has started is
+			// finished first: receiveAck() keeps the interrupt for the
+			// caller instead of giving up.
+			if(Thread.interrupted())
+				throw new InterruptedIOException("accept() interrupted");
 			packet = receivePacket(true);
 		}
-		while(packet == null || packet.getFlag() != Flag.SYN);
+		while(packet == null || packet.getFlag() != Flag.SYN || isAcceptedSyn(packet));
 		state = State.SYN_RCVD;
-		ConnectionImpl c = new ConnectionImpl(findFreePort());//method to find a free port
+		long start = ProtocolEvents.ENABLED ? System.nanoTime() : 0;
+		ConnectionImpl c = new ConnectionImpl(findFreePort(), transport);//method to find a free port
 		c.remotePort = packet.getSrc_port();
 		c.remoteAddress = packet.getSrc_addr();
 		try{
 			c.sendAck(packet,true);
 		} catch (IOException e) {
-			Log.writeToLog("sendAck failed", "ConnectionImpl");
-			e.printStackTrace();
+			CoLog.warn("ConnectionImpl", "sendAck failed: {}", e);
 		}
 		ack = c.receiveAck();
-		if(!ack.getSrc_addr().equals(c.remoteAddress)){
-			System.out.println("ACK SRC not Equal to remoteAdress");
-			System.out.println("Ack.src: "+ ack.getSrc_addr());
-			System.out.println("Remoteadress: " + c.remoteAddress);
-			
+		if (ProtocolEvents.ENABLED)
+			ProtocolEvents.SINK.handshake("accept", c.myPort, System.nanoTime() - start,
+					ack != null && ack.getFlag() == Flag.ACK);
+		if(ack != null && !c.isFromPeer(ack)){
+			CoLog.debug(ack, "ConnectionImpl", "Ack not from {}, dropping connection", c.remoteAddress);
+			c.release();
 			return null;
 		}
-		if(ack == null || ack.getFlag() != Flag.ACK)
+		if(ack == null || ack.getFlag() != Flag.ACK){
+			c.release();
 			throw new SocketTimeoutException();
+		}
 		
 		c.state = State.ESTABLISHED;
+		c.metrics.register();
+		long synKey = Endpoints.source(packet);
+		if(synKey != Endpoints.UNKNOWN){
+			if(acceptedSyns.size() >= MAXACCEPTEDSYNS)
+				acceptedSyns.clear();
+			acceptedSyns.put(synKey, packet.getSeq_nr());
+		}
 		//System.out.println("Server connection up");
-		Log.writeToLog("Connection established", "Client");
+		CoLog.info("ConnectionImpl", "Connection established to {}", c.remoteAddress);
 		state = State.LISTEN;
 		return (Connection)c;
 	}
+
+	/**
+	 * Test if a SYN is a retransmission of one already accepted, i.e. from the
+	 * same endpoint with the same sequence number.
+	 */
+	private boolean isAcceptedSyn(KtnDatagram syn) {
+		long key = Endpoints.source(syn);
+		if(key == Endpoints.UNKNOWN || acceptedSyns.get(key, syn.getSeq_nr() + 1) != syn.getSeq_nr())
+			return false;
+		CoLog.debug(syn, "ConnectionImpl", "Dropping SYN for a connection already accepted");
+		return true;
+	}
+
+	/**
+	 * Unregister the metrics and release the transport's port of a connection
+	 * that has reached CLOSED, or whose handshake failed.
+	 */
+	private void release(){
+		metrics.unregister();
+		try{
+			transport.release(myPort);
+		}
+		catch(IOException e){
+			CoLog.warn("ConnectionImpl", "Could not release port {}: {}", myPort, e);
+		}
+	}
 	/**
 	 * Finds a free port for the accept method 
 	 * Alltough originaly it was based on the idea of usedPorts holding available ports (which would be far more elegant), 
@@ -205,23 +279,22 @@ public class ConnectionImpl extends AbstractConnection {
 		KtnDatagram packet = constructDataPacket(msg);
 		KtnDatagram ack = sendDataPacketWithRetransmit(packet);
 		if(ack != null){ //we got an ack!
-			System.out.println("through null test");
-			if(!isValid(ack) || ack.getAck() > nextSequenceNo-1){ //if the ack we received is not valid or if the ack number is too high we are dealing with a ghost package
-				System.out.println("failed valid or seqNrTest: 1. valid test, 2. ackSeqNr too high");
-				System.out.println(!isValid(ack));
-				System.out.println(ack.getSeq_nr() >= nextSequenceNo);
+			if(!isValid(ack) || !isFromPeer(ack) || ack.getAck() > nextSequenceNo-1
+					|| !inWindow(ack.getAck(), nextSequenceNo-1)){ //if the ack we received is not valid, from someone else, or if the ack number is too high or stale we are dealing with a ghost package
+				CoLog.debug(ack, "ConnectionImpl", "Invalid or ghost ack, resending");
 				sendTries++;//treating ghost (ack)package as if we did not receive ack from other side
 				send(msg);
 				sendTries = 0;
 				return;
 			}
 			else if(ack.getAck() < nextSequenceNo-1){ //we received an ack for the last package, resending this one
-				System.out.println("received ack for last package");
+				CoLog.debug(ack, "ConnectionImpl", "Ack for previous packet, resending");
+				metrics.duplicateAck();
 				send(msg);
 				return;
 			}
 			else{//we got valid ACK
-				System.out.println("Valid ACK");
+				CoLog.trace("ConnectionImpl", "Valid ack");
 			}
 		}
 		else{//did not get ack from the other side
@@ -233,6 +306,7 @@ public class ConnectionImpl extends AbstractConnection {
 			}
 			else{//we consider the connection lost
 				state = State.CLOSED; //TODO how to handle cut connection
+				release();
 				throw new ConnectException("Connection lost "); //not sure how to handle lost connection
 			}
 		}
@@ -247,69 +321,72 @@ public class ConnectionImpl extends AbstractConnection {
 	 * @see AbstractConnection#sendAck(KtnDatagram, boolean)
 	 */
 	public String receive() throws ConnectException, IOException, EOFException {
-		KtnDatagram packet = null;
-		try{
-			packet = receivePacket(false);			
-			System.out.println(packet);
-		}
-		catch(EOFException e){ // EOFException means that we got a FIN
-			//lastPacket = packet;
-			state = State.CLOSE_WAIT;
-			throw new EOFException();
-		}
-		System.out.println("RECEIVED PACKET! true if we got packet:");
-		System.out.println(packet != null);
-		if(packet == null){ // timed out tries again according to MaxreceiveTries
-			if(receiveTries < MAXRECEIVETRIES){
-				receiveTries++;
-				String msg = receive();
-				receiveTries=0;
-				return msg;
+		int timeouts = 0;
+		while(true){
+			KtnDatagram packet = null;
+			try{
+				packet = receivePacket(false);
+			}
+			catch(EOFException e){ // EOFException means that we got a FIN
+				state = State.CLOSE_WAIT;
+				throw new EOFException();
 			}
-			else{
+			if(packet == null){ // timed out tries again according to MaxreceiveTries
+				if(timeouts++ < MAXRECEIVETRIES)
+					continue;
 				state = State.CLOSED;//TODO check if additional operations is needed to close connection
+				release();
 				throw new ConnectException("Connection Lost");
 			}
-		}
-		else{ //received a packet
-			if(packet.getSrc_addr() != null && packet.getSrc_port() == remotePort && packet.getSrc_addr().equals(remoteAddress)){//true if we are not dealing with a ghost packet
-				System.out.println("Through ghost check");
-				if(!isValid(packet)){
-					System.out.println("Failed valid check");
-					if(lastPacket != null){ 	//lastPacket is only null when the first packet is sent,
-						//in the case that the first packet is null we will remain silent and pretend we did not get it.
-						sendAck(lastPacket, false);
-						return receive();
-					}
-					return receive();
-				}
-				else{//packet has valid checksum
-					System.out.println("Though Valid Check");
-					if(lastPacket != null && packet.getSeq_nr()!=lastPacket.getSeq_nr()+1){
-						System.out.println("Failed packet null check or seqNr check, true is bad: 1. null check, 2. seqNr check");
-						System.out.println(lastPacket != null);
-						System.out.println(packet.getSeq_nr()!=lastPacket.getSeq_nr()-1);
-						sendAck(lastPacket, false);
-						return receive();
-					}else{//Valid Packet
-						System.out.println("Valid packet!");
-						sendAck(packet,false);
-						lastPacket = packet;
-						System.out.println("Last Packet (from receive): ");
-						System.out.println(lastPacket);
-						return (String) packet.getPayload();
-				}}
+			int seq = packet.getSeq_nr();
+			if(!isFromPeer(packet) || (lastPacket != null && !inWindow(seq, lastPacket.getSeq_nr()+1))){//we received a ghost package or a stale packet from an earlier connection
+				CoLog.debug(packet, "ConnectionImpl", "Ghost packet, ignoring");
+				metrics.ghostRejected();
+				if (ProtocolEvents.ENABLED) ProtocolEvents.SINK.ghostDropped(packet);
+				continue;
+			}
+			if(!isValid(packet)){
+				CoLog.debug(packet, "ConnectionImpl", "Failed checksum, acking last packet");
+				//lastPacket is only null before the first packet is received,
+				//in that case we remain silent and pretend we did not get it.
+				if(lastPacket != null)
+					reAck(lastPacket);
+				continue;
 			}
-			else{//we received a ghost package
-				System.out.println("failed ghost check: 1.true if packetsource != null, 2. true if correct remoteport, 3. true if correct remoteAddress");
-				System.out.println(packet.getSrc_addr() != null);
-				System.out.println(packet.getSrc_port() == remotePort);
-				System.out.println(packet.getSrc_addr().equals(remoteAddress));
-				return receive();
+			if(delivered.isDuplicate(seq)){
+				//Already delivered. Only the last packet can still be waiting for
+				//its ack at the sender, so only that one is acked again.
+				CoLog.debug(packet, "ConnectionImpl", "Duplicate, dropping");
+				metrics.duplicateAbsorbed();
+				if(seq == delivered.highest())
+					reAck(packet);
+				continue;
 			}
+			if(lastPacket != null && seq != lastPacket.getSeq_nr()+1){
+				CoLog.debug(packet, "ConnectionImpl", "Out of sequence, acking last packet");
+				reAck(lastPacket);
+				continue;
+			}
+			//Valid Packet
+			sendAck(packet,false);
+			lastPacket = packet;
+			delivered.delivered(seq);
+			return (String) packet.getPayload();
 		}
-		//return "";
-		//remember timeout and then call send
+	}
+
+	/**
+	 * Ack a packet that has been acked before. Duplicates and damaged packets
+	 * tend to arrive in bursts, and one ack answers them all, so a packet is
+	 * acked again at most once every {@link #REACK_INTERVAL} milliseconds.
+	 */
+	private void reAck(KtnDatagram packet) throws IOException {
+		long now = System.currentTimeMillis();
+		if(packet.getSeq_nr() == lastReAckSeq && now - lastReAckTime < REACK_INTERVAL)
+			return;
+		sendAck(packet, false);
+		lastReAckSeq = packet.getSeq_nr();
+		lastReAckTime = now;
 	}
 
 	/**
@@ -317,12 +394,13 @@ public class ConnectionImpl extends AbstractConnection {
 	 * @see Connection#close()
 	 */
 	public void close() throws IOException {
-		System.out.println("System in state : " + state);
+		CoLog.debug("ConnectionImpl", "Closing in state {}", state);
+		long start = ProtocolEvents.ENABLED ? System.nanoTime() : 0;
+		State from = state;
 		KtnDatagram ack = null;
 		KtnDatagram packet = null;
 		KtnDatagram finack = null;
 		if(state == State.CLOSE_WAIT){
-			System.out.println("Last Packet: "+lastPacket);
 			sendAck(lastPacket, false);
 			packet = constructInternalPacket(Flag.FIN);
 
@@ -330,22 +408,25 @@ public class ConnectionImpl extends AbstractConnection {
 				Thread.currentThread().sleep(100);//Wait for client to be ready to recieve FIN
 				simplySendPacket(packet);
 			} catch (ClException e) {
-				e.printStackTrace();
+				CoLog.warn(packet, "ConnectionImpl", "Could not send FIN");
 			}
 			catch (InterruptedException e1) {
-				e1.printStackTrace();
+				Thread.currentThread().interrupt();
 			}
 			ack = receiveAck();
 			if(ack == null)
 				//How to handle this? Answer: Do nothing!
 			state = State.CLOSED;
+			release();
+			if (ProtocolEvents.ENABLED)
+				ProtocolEvents.SINK.closed(myPort, from.name(), System.nanoTime() - start);
 		}
 		else if(state == State.ESTABLISHED){
 			packet = constructInternalPacket(Flag.FIN);
 			try {
 				simplySendPacket(packet);
 			} catch (ClException e) {
-				e.printStackTrace();
+				CoLog.warn(packet, "ConnectionImpl", "Could not send FIN");
 			}
 			state = State.FIN_WAIT_1;
 			ack = receiveAck();
@@ -361,20 +442,22 @@ public class ConnectionImpl extends AbstractConnection {
 			}
 			state = State.FIN_WAIT_2;
 			
-			System.out.println("Waiting for Fin2");
+			CoLog.trace("ConnectionImpl", "Waiting for FIN");
 			finack = receiveAck();
 			if(finack == null)
 				finack = receiveAck();
-			System.out.println("Done waiting for Fin2");
 			if(finack != null)
 				sendAck(finack, false);
 				state = State.TIME_WAIT;
 			
 			state = State.CLOSED;
+			release();
+			if (ProtocolEvents.ENABLED)
+				ProtocolEvents.SINK.closed(myPort, from.name(), System.nanoTime() - start);
 			
 		}
 		else{
-			System.out.println("Impressive you managed to call close in the state: " + state);
+			CoLog.warn("ConnectionImpl", "close() called in state {}", state);
 			throw new IOException();
 		}
 		
@@ -392,6 +475,8 @@ public class ConnectionImpl extends AbstractConnection {
 	protected boolean isValid(KtnDatagram packet) {
 		if(packet.getChecksum() == packet.calculateChecksum())
 			return true;
+		metrics.checksumFailure();
+		if (ProtocolEvents.ENABLED) ProtocolEvents.SINK.checksumInvalid(packet);
 		return false;
 	}
 }
@@ -0,0 +1,322 @@
+package no.ntnu.fp.net.co;
+
+import java.lang.ref.WeakReference;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and a round trip time histogram for one {@link AbstractConnection},
+ * published as an MBean under {@value #DOMAIN}:type=Connection,id=&lt;n&gt;.
+ * Every count is also added to the process total, published as
+ * {@value #DOMAIN}:type=Connections. <br>
+ * <br>
+ * Recording only increments atomic counters, so it never allocates or
+ * blocks. Queue depths and states are read from the connections when the
+ * MBean is queried. The total counts every connection from its creation until
+ * {@link #unregister()}, so its state gauge also shows connections that are
+ * listening or in a handshake. A connection's own MBean is only registered by
+ * {@link #register()} once the connection is established, and removed by
+ * unregister() when it closes; its counts stay in the total. The metrics hold
+ * their connection weakly, so a connection dropped without being closed does
+ * not stay reachable through JMX; it is forgotten the next time the total is
+ * queried or another connection registers.
+ */
+public class ConnectionMetrics implements ConnectionMetricsMBean {
+
+    /** JMX domain of the MBeans. */
+    public static final String DOMAIN = "no.ntnu.fp.net.co";
+
+    private static final int BUCKETS = 32;
+    private static final AtomicInteger ids = new AtomicInteger();
+    /** Connections not yet unregistered, for the total's gauges. */
+    private static final Set<ConnectionMetrics> live =
+            Collections.newSetFromMap(new ConcurrentHashMap<ConnectionMetrics, Boolean>());
+
+    private static final ConnectionMetrics TOTAL = new ConnectionMetrics(null, null);
+    static {
+        publish(TOTAL, DOMAIN + ":type=Connections");
+    }
+
+    private final WeakReference<AbstractConnection> connection;
+    private final ConnectionMetrics total;
+    private ObjectName name;
+    /** Set once, under the lock, by register() and unregister(). */
+    private boolean registered, closed;
+
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong ghostsRejected = new AtomicLong();
+    private final AtomicLong checksumFailures = new AtomicLong();
+    private final AtomicLong duplicateAcks = new AtomicLong();
+    private final AtomicLong duplicatesAbsorbed = new AtomicLong();
+    private final AtomicLongArray rttBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong rttCount = new AtomicLong();
+    private final AtomicLong rttSumMicros = new AtomicLong();
+    private final AtomicLong rttMaxMicros = new AtomicLong();
+
+    private ConnectionMetrics(AbstractConnection connection, ConnectionMetrics total) {
+        this.connection = connection == null ? null
+                : new WeakReference<AbstractConnection>(connection);
+        this.total = total;
+    }
+
+    /**
+     * Create the metrics for a connection, counted in the total from now on.
+     * Its MBean is not registered until {@link #register()}.
+     *
+     * @param connection
+     *            the connection, read for queue depths and state.
+     * @return the metrics to record to.
+     */
+    static ConnectionMetrics create(AbstractConnection connection) {
+        ConnectionMetrics metrics = new ConnectionMetrics(connection, TOTAL);
+        live.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * Register the MBean of a connection that has been established. Does
+     * nothing if it is already registered or was unregistered.
+     */
+    void register() {
+        purge();
+        synchronized (this) {
+            if (registered || closed) return;
+            registered = true;
+            publish(this, DOMAIN + ":type=Connection,id=" + ids.incrementAndGet());
+        }
+    }
+
+    /** @return the total over all connections in this process. */
+    public static ConnectionMetrics getTotal() {
+        return TOTAL;
+    }
+
+    private static void publish(ConnectionMetrics metrics, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            metrics.name = new ObjectName(name);
+            server.registerMBean(metrics, metrics.name);
+        }
+        catch (Exception e) {
+            metrics.name = null;
+            CoLog.warn("ConnectionMetrics", "Could not register MBean: {}", e);
+        }
+    }
+
+    /**
+     * Remove the MBean of a connection that is closed or failed to connect.
+     * Safe to call twice, and before {@link #register()}.
+     */
+    void unregister() {
+        live.remove(this);
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (!registered || name == null) return;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch (Exception e) {
+                // Already gone.
+            }
+        }
+    }
+
+    /** Unregister the metrics of connections that were collected unclosed. */
+    private static void purge() {
+        for (ConnectionMetrics metrics : live) {
+            if (metrics.connection.get() == null) metrics.unregister();
+        }
+    }
+
+    void packetSent() {
+        packetsSent.incrementAndGet();
+        if (total != null) total.packetSent();
+    }
+
+    void packetReceived() {
+        packetsReceived.incrementAndGet();
+        if (total != null) total.packetReceived();
+    }
+
+    void retransmit() {
+        retransmits.incrementAndGet();
+        if (total != null) total.retransmit();
+    }
+
+    void ghostRejected() {
+        ghostsRejected.incrementAndGet();
+        if (total != null) total.ghostRejected();
+    }
+
+    void checksumFailure() {
+        checksumFailures.incrementAndGet();
+        if (total != null) total.checksumFailure();
+    }
+
+    void duplicateAck() {
+        duplicateAcks.incrementAndGet();
+        if (total != null) total.duplicateAck();
+    }
+
+    void duplicateAbsorbed() {
+        duplicatesAbsorbed.incrementAndGet();
+        if (total != null) total.duplicateAbsorbed();
+    }
+
+    /**
+     * Record a round trip time.
+     *
+     * @param nanos
+     *            time from sending a data packet to receiving its ack.
+     */
+    void rtt(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        rttBuckets.incrementAndGet(bucket);
+        rttCount.incrementAndGet();
+        rttSumMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = rttMaxMicros.get()) && !rttMaxMicros.compareAndSet(max, micros)) {
+            // Retry until max is at least micros.
+        }
+        if (total != null) total.rtt(nanos);
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    public long getGhostsRejected() {
+        return ghostsRejected.get();
+    }
+
+    public long getChecksumFailures() {
+        return checksumFailures.get();
+    }
+
+    public long getDuplicateAcks() {
+        return duplicateAcks.get();
+    }
+
+    public long getDuplicatesAbsorbed() {
+        return duplicatesAbsorbed.get();
+    }
+
+    public long getRttCount() {
+        return rttCount.get();
+    }
+
+    public double getRttMeanMillis() {
+        long n = rttCount.get();
+        return n == 0 ? 0 : rttSumMicros.get() / 1000.0 / n;
+    }
+
+    public double getRttP50Millis() {
+        return rttPercentile(0.50);
+    }
+
+    public double getRttP99Millis() {
+        return rttPercentile(0.99);
+    }
+
+    public double getRttMaxMillis() {
+        return rttMaxMicros.get() / 1000.0;
+    }
+
+    public long[] getRttHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = rttBuckets.get(i);
+        }
+        return histogram;
+    }
+
+    /** Upper bound of the bucket holding the given percentile. */
+    private double rttPercentile(double p) {
+        long[] histogram = getRttHistogram();
+        long n = 0;
+        for (long count : histogram) {
+            n += count;
+        }
+        if (n == 0) return 0;
+        long rank = (long)Math.ceil(p * n), seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank) return Math.min(1L << i, rttMaxMicros.get()) / 1000.0;
+        }
+        return getRttMaxMillis();
+    }
+
+    public int getInternalQueueDepth() {
+        if (connection != null) {
+            AbstractConnection c = connection.get();
+            return c == null ? 0 : c.getInternalQueueDepth();
+        }
+        purge();
+        int depth = 0;
+        for (ConnectionMetrics metrics : live) {
+            AbstractConnection c = metrics.connection.get();
+            if (c != null) depth += c.getInternalQueueDepth();
+        }
+        return depth;
+    }
+
+    public int getExternalQueueDepth() {
+        if (connection != null) {
+            AbstractConnection c = connection.get();
+            return c == null ? 0 : c.getExternalQueueDepth();
+        }
+        purge();
+        int depth = 0;
+        for (ConnectionMetrics metrics : live) {
+            AbstractConnection c = metrics.connection.get();
+            if (c != null) depth += c.getExternalQueueDepth();
+        }
+        return depth;
+    }
+
+    public String getState() {
+        if (connection != null) {
+            AbstractConnection c = connection.get();
+            return c == null ? String.valueOf(AbstractConnection.State.CLOSED) : String.valueOf(c.state);
+        }
+        purge();
+        Map<AbstractConnection.State, Integer> states =
+                new EnumMap<AbstractConnection.State, Integer>(AbstractConnection.State.class);
+        for (ConnectionMetrics metrics : live) {
+            AbstractConnection c = metrics.connection.get();
+            AbstractConnection.State state = c == null ? null : c.state;
+            // Not yet connected, or closed but not yet unregistered.
+            if (state == null || state == AbstractConnection.State.CLOSED) continue;
+            Integer count = states.get(state);
+            states.put(state, count == null ? 1 : count + 1);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<AbstractConnection.State, Integer> entry : states.entrySet()) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
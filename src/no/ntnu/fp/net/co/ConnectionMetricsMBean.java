@@ -0,0 +1,63 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Management interface of {@link ConnectionMetrics}, as seen in e.g.
+ * JConsole. The same interface is used for a single connection and for the
+ * total over all connections in the process.
+ */
+public interface ConnectionMetricsMBean {
+
+    /** @return packets handed to the transport, including acks and resends. */
+    public long getPacketsSent();
+
+    /** @return packets received from the transport. */
+    public long getPacketsReceived();
+
+    /** @return data packets sent again because no ack came in time. */
+    public long getRetransmits();
+
+    /** @return packets dropped because they came from the wrong endpoint. */
+    public long getGhostsRejected();
+
+    /** @return packets that failed the checksum check. */
+    public long getChecksumFailures();
+
+    /** @return acks for a data packet that was already acked. */
+    public long getDuplicateAcks();
+
+    /** @return data packets received again after delivery and dropped. */
+    public long getDuplicatesAbsorbed();
+
+    /** @return number of round trip times measured. */
+    public long getRttCount();
+
+    /** @return mean round trip time in milliseconds. */
+    public double getRttMeanMillis();
+
+    /** @return median round trip time in milliseconds, from the histogram. */
+    public double getRttP50Millis();
+
+    /** @return 99th percentile round trip time in milliseconds, from the histogram. */
+    public double getRttP99Millis();
+
+    /** @return longest round trip time in milliseconds. */
+    public double getRttMaxMillis();
+
+    /**
+     * @return round trip time histogram: element i counts times from 2^(i-1)
+     *         up to 2^i microseconds.
+     */
+    public long[] getRttHistogram();
+
+    /** @return unhandled internal (protocol) packets queued. */
+    public int getInternalQueueDepth();
+
+    /** @return unhandled data packets queued. */
+    public int getExternalQueueDepth();
+
+    /**
+     * @return the state of the connection, or for the total the number of
+     *         open connections in each state, e.g. "ESTABLISHED=2 LISTEN=1".
+     */
+    public String getState();
+}
@@ -0,0 +1,64 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The connectionless layer as seen from {@link AbstractConnection}. All
+ * sending and receiving of {@link KtnDatagram}s goes through an
+ * implementation of this interface, so the connection oriented layer can run
+ * on top of A2, plain UDP or an in-process loopback without changes.
+ *
+ * @see DatagramTransports
+ */
+public interface DatagramTransport {
+
+    /**
+     * Send a datagram to the address and port given in the datagram.
+     *
+     * @param packet
+     *            the datagram to send.
+     * @throws ClException
+     *             if the connectionless layer refuses the datagram.
+     * @throws IOException
+     *             if the datagram could not be sent.
+     */
+    public void send(KtnDatagram packet) throws ClException, IOException;
+
+    /**
+     * Block until a datagram arrives on the given port.
+     *
+     * @param port
+     *            the local port to receive on.
+     * @return the received datagram, or null if the receive was cancelled or
+     *         nothing usable arrived.
+     * @throws IOException
+     *             if the port can not be listened to.
+     */
+    public KtnDatagram receive(int port) throws IOException;
+
+    /**
+     * Make a receive blocked on the given port return null. Does nothing if no
+     * thread is receiving on the port.
+     *
+     * @param port
+     *            the local port a thread is receiving on.
+     * @throws IOException
+     *             if thrown by the underlying layer.
+     */
+    public void cancelReceive(int port) throws IOException;
+
+    /**
+     * Free what the transport holds for a local port that is no longer used,
+     * e.g. because its connection is closed. A receive blocked on the port
+     * returns null. The port may be used again afterwards.
+     *
+     * @param port
+     *            the local port to release.
+     * @throws IOException
+     *             if thrown by the underlying layer.
+     */
+    public void release(int port) throws IOException;
+}
@@ -0,0 +1,143 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Chooses the {@link DatagramTransport} new connections use. <br>
+ * <br>
+ * The transport is named by the system property {@value #PROPERTY} or, if
+ * that is not set, by the &lt;transport&gt; element in settings.xml:
+ * <ul>
+ * <li>a2 - {@link ClSocketTransport}, the default.
+ * <li>udp - {@link UdpTransport}.
+ * <li>loopback - {@link LoopbackTransport}, in-process only.
+ * <li>emulated-&lt;name&gt;, e.g. emulated-loopback - the named transport
+ * wrapped in a {@link NetworkEmulator} with the error rates from
+ * settings.xml, seeded by the system property {@value #SEED_PROPERTY}.
+ * </ul>
+ * The transport is created once and shared by all connections in the
+ * process, which the loopback transport depends on. If the system property
+ * {@value #TRACE_PROPERTY} names a file, every packet through the default
+ * transport is also written to a {@link PacketTrace} in that file.
+ */
+public final class DatagramTransports {
+
+    /** System property naming the transport. */
+    public static final String PROPERTY = "ktn.transport";
+
+    /** System property with the seed for an emulated transport. */
+    public static final String SEED_PROPERTY = "ktn.emulator.seed";
+
+    /** System property naming the file to write a packet trace to. */
+    public static final String TRACE_PROPERTY = "ktn.trace";
+
+    private static final String EMULATED = "emulated-";
+
+    /** File read for the &lt;transport&gt; element, same as A2 uses. */
+    static final String SETTINGS_FILE = "settings.xml";
+
+    private static DatagramTransport defaultTransport;
+
+    private DatagramTransports() {
+    }
+
+    /**
+     * @return the transport new connections should use.
+     */
+    public static synchronized DatagramTransport getDefault() {
+        if (defaultTransport == null) {
+            String name = System.getProperty(PROPERTY);
+            if (name == null) name = readSetting("transport");
+            defaultTransport = create(name);
+            String trace = System.getProperty(TRACE_PROPERTY);
+            if (trace != null) defaultTransport = traced(defaultTransport, new File(trace));
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * Replace the transport used by connections created after this call, e.g.
+     * to run a test over {@link LoopbackTransport}.
+     *
+     * @param transport
+     *            the transport to use.
+     */
+    public static synchronized void setDefault(DatagramTransport transport) {
+        defaultTransport = transport;
+    }
+
+    /**
+     * Create a transport from its name.
+     *
+     * @param name
+     *            a2, udp, loopback or one of them prefixed with emulated-.
+     *            null gives the default, a2.
+     * @return a new transport.
+     */
+    public static DatagramTransport create(String name) {
+        if (name != null && name.startsWith(EMULATED)) {
+            long seed = Long.getLong(SEED_PROPERTY, 0L);
+            return NetworkEmulator.fromSettings(create(name.substring(EMULATED.length())), seed);
+        }
+        if (name == null || name.equals("a2")) return new ClSocketTransport();
+        if (name.equals("udp")) return new UdpTransport();
+        if (name.equals("loopback")) return new LoopbackTransport();
+        throw new IllegalArgumentException("Unknown transport: " + name);
+    }
+
+    /**
+     * Wrap a transport in a {@link TracingTransport} writing to the given file,
+     * and close the trace when the VM exits. Gives the transport unchanged if
+     * the file can not be created.
+     */
+    private static DatagramTransport traced(DatagramTransport transport, File file) {
+        final PacketTrace trace;
+        try {
+            trace = new PacketTrace(file);
+        }
+        catch (IOException e) {
+            CoLog.warn("DatagramTransports", "Could not create trace " + file + ": {}", e);
+            return transport;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    trace.close();
+                }
+                catch (IOException e) {
+                    // Exiting anyway.
+                }
+            }
+        });
+        return new TracingTransport(transport, trace);
+    }
+
+    /**
+     * Read the text of a top level element in settings.xml.
+     *
+     * @param element
+     *            name of the element.
+     * @return its trimmed text, or null if the file or element is missing.
+     */
+    static String readSetting(String element) {
+        File file = new File(SETTINGS_FILE);
+        if (!file.exists()) return null;
+        try {
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+            NodeList nodes = doc.getDocumentElement().getElementsByTagName(element);
+            if (nodes.getLength() == 0) return null;
+            return nodes.item(0).getTextContent().trim();
+        }
+        catch (Exception e) {
+            CoLog.warn("DatagramTransports", "Could not read " + element + " from "
+                    + SETTINGS_FILE + ": {}", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package no.ntnu.fp.net.co;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Packs an endpoint, an IPv4 address and a port, into one long: the address
+ * in bits 16 to 47 and the port in bits 0 to 15. Two endpoints are equal
+ * exactly when their keys are, so checking where a packet came from is one
+ * primitive comparison, and endpoints can be used in a {@link LongMap}. <br>
+ * <br>
+ * Addresses that are not dotted quads, e.g. host names, have no key;
+ * {@link #UNKNOWN} is returned and callers compare the strings instead.
+ */
+public final class Endpoints {
+
+    /** Returned for addresses that are not dotted quads. No endpoint has it. */
+    public static final long UNKNOWN = -1L;
+
+    private Endpoints() {
+    }
+
+    /**
+     * @param address
+     *            dotted quad, e.g. "127.0.0.1".
+     * @param port
+     *            port, 0 to 65535.
+     * @return the key, or {@link #UNKNOWN}.
+     */
+    public static long key(String address, int port) {
+        if (address == null || (port & ~0xffff) != 0) return UNKNOWN;
+        long ip = parse(address);
+        return ip < 0 ? UNKNOWN : ip << 16 | port;
+    }
+
+    /** @return the key of the endpoint a packet came from, or {@link #UNKNOWN}. */
+    public static long source(KtnDatagram packet) {
+        return key(packet.getSrc_addr(), packet.getSrc_port());
+    }
+
+    /** @return the key of the endpoint a packet is sent to, or {@link #UNKNOWN}. */
+    public static long destination(KtnDatagram packet) {
+        return key(packet.getDest_addr(), packet.getDest_port());
+    }
+
+    /**
+     * Parse a dotted quad without allocating.
+     *
+     * @return the address as an int, or 0 if it is null or not a dotted quad.
+     */
+    public static int ipv4(String address) {
+        long ip = address == null ? -1 : parse(address);
+        return ip < 0 ? 0 : (int)ip;
+    }
+
+    /** @return the dotted quad of an address from {@link #ipv4(String)}. */
+    public static String toString(int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xff) + "." + (address >>> 8 & 0xff)
+                + "." + (address & 0xff);
+    }
+
+    /** @return "address:port" of a key. */
+    public static String toString(long key) {
+        if (key == UNKNOWN) return "?";
+        return toString((int)(key >>> 16)) + ":" + (key & 0xffff);
+    }
+
+    /** @return the address as an unsigned value, or -1 if not a dotted quad. */
+    private static long parse(String address) {
+        long result = 0;
+        int part = 0, digits = 0, dots = 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9' && digits < 3) {
+                part = part * 10 + (c - '0');
+                digits++;
+            }
+            else if (c == '.' && digits > 0 && dots < 3) {
+                if (part > 255) return -1;
+                result = result << 8 | part;
+                part = digits = 0;
+                dots++;
+            }
+            else {
+                return -1;
+            }
+        }
+        if (dots != 3 || digits == 0 || part > 255) return -1;
+        return result << 8 | part;
+    }
+}
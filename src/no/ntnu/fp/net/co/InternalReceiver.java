@@ -2,8 +2,6 @@ package no.ntnu.fp.net.co;
 
 import java.io.IOException;
 
-import no.ntnu.fp.net.admin.Log;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 
 /**
@@ -15,32 +13,30 @@ import no.ntnu.fp.net.cl.KtnDatagram;
 class InternalReceiver extends Thread {
 
   /** Hold a packet. */
-  private KtnDatagram packet = null;
-  /** Connection to listen on. */
-  private ClSocket connection;
+  private volatile KtnDatagram packet = null;
+  /** Transport to listen on. */
+  private DatagramTransport transport;
   /** Port to listen on. */
   private int port = -1;
 
   /**
    * Construct a receiver for a given port.
    *
+   * @param transport Transport to receive through.
    * @param port Port to listen for packets on.
    */
-  public InternalReceiver(int port) {
+  public InternalReceiver(DatagramTransport transport, int port) {
+    this.transport = transport;
     this.port = port;
   }
 
   /** Try to receive a packet. */
   public void run() {
     try {
-      connection = new ClSocket();
-      packet = connection.receive(port);
-      connection = null;
+      packet = transport.receive(port);
     }
     catch (Exception e) {
-      Log.writeToLog("Exception while receiving: " + e.getMessage(),
-		     "InternalReceiever");
-      e.printStackTrace();
+      CoLog.warn("InternalReceiver", "Exception while receiving: {}", e);
     }
   }
 
@@ -52,8 +48,8 @@ class InternalReceiver extends Thread {
   /** Stop listening for packet. */
   public void stopReceive() {
     try {
-      if (connection != null)
-	connection.cancelReceive();
+      if (packet == null)
+	transport.cancelReceive(port);
     }
     catch (IOException e) {
       // Ignore.
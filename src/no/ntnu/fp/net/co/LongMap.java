@@ -0,0 +1,92 @@
+package no.ntnu.fp.net.co;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to int values with open addressing, so lookups neither
+ * box nor allocate. Meant for {@link Endpoints} keys; the key
+ * {@link Endpoints#UNKNOWN} (-1) can not be stored. Not thread-safe.
+ */
+class LongMap {
+
+    private static final long FREE = -1L;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * @param expected
+     *            number of entries to make room for.
+     */
+    LongMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+    }
+
+    /** @return the value of the key, or missing if it has none. */
+    int get(long key, int missing) {
+        int mask = keys.length - 1;
+        for (int i = index(key, mask);; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) return values[i];
+            if (k == FREE) return missing;
+        }
+    }
+
+    boolean containsKey(long key) {
+        int mask = keys.length - 1;
+        for (int i = index(key, mask);; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) return true;
+            if (k == FREE) return false;
+        }
+    }
+
+    /** Set the value of a key. */
+    void put(long key, int value) {
+        if (key == FREE) throw new IllegalArgumentException("Key -1 can not be stored.");
+        if ((size + 1) * 2 > keys.length) grow();
+        int mask = keys.length - 1;
+        for (int i = index(key, mask);; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            if (keys[i] == FREE) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int index(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h >>> 32) & mask;
+    }
+}
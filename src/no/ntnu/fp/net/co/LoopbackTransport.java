@@ -0,0 +1,105 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * In-process {@link DatagramTransport}. Datagrams are handed directly to a
+ * queue for the destination port, without touching the network, so both ends
+ * of a connection must share the same instance. Addresses are ignored: every
+ * port lives in this process. <br>
+ * <br>
+ * Datagrams sent to a port nobody is receiving on are queued, up to
+ * {@link #QUEUE_LIMIT} per port, after which they are dropped like a full
+ * socket buffer would drop them.
+ */
+public class LoopbackTransport implements DatagramTransport {
+
+    /** Largest number of datagrams queued for one port. */
+    public static final int QUEUE_LIMIT = 1024;
+
+    private final ConcurrentHashMap<Integer, Port> ports = new ConcurrentHashMap<Integer, Port>();
+
+    public void send(KtnDatagram packet) throws IOException {
+        // A2 fills in the checksum when sending; do the same.
+        packet.setChecksum(packet.calculateChecksum());
+        Port port = portFor(packet.getDest_port());
+        synchronized (port) {
+            if (port.queue.size() >= QUEUE_LIMIT) {
+                CoLog.warn(packet, "LoopbackTransport", "Loopback queue full, dropping");
+                return;
+            }
+            port.queue.addLast(packet);
+            port.notifyAll();
+        }
+    }
+
+    public KtnDatagram receive(int portNo) throws IOException {
+        Port port = portFor(portNo);
+        synchronized (port) {
+            port.receivers++;
+            try {
+                while (port.queue.isEmpty() && !port.cancelled) {
+                    try {
+                        port.wait();
+                    }
+                    catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+                if (port.cancelled) {
+                    port.cancelled = false;
+                    return null;
+                }
+                return port.queue.removeFirst();
+            }
+            finally {
+                port.receivers--;
+            }
+        }
+    }
+
+    public void cancelReceive(int portNo) {
+        Port port = ports.get(portNo);
+        if (port == null) return;
+        synchronized (port) {
+            if (port.receivers > 0) {
+                port.cancelled = true;
+                port.notifyAll();
+            }
+        }
+    }
+
+    /** Drop the port's queue. A receive blocked on it returns null. */
+    public void release(int portNo) {
+        Port port = ports.remove(portNo);
+        if (port == null) return;
+        synchronized (port) {
+            port.queue.clear();
+            if (port.receivers > 0) {
+                port.cancelled = true;
+                port.notifyAll();
+            }
+        }
+    }
+
+    private Port portFor(int portNo) {
+        Port port = ports.get(portNo);
+        if (port == null) {
+            Port created = new Port();
+            port = ports.putIfAbsent(portNo, created);
+            if (port == null) port = created;
+        }
+        return port;
+    }
+
+    /** Queue and receive state for one port. Guarded by its own monitor. */
+    private static class Port {
+        private final LinkedList<KtnDatagram> queue = new LinkedList<KtnDatagram>();
+        private int receivers = 0;
+        private boolean cancelled = false;
+    }
+}
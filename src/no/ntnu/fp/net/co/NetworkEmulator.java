@@ -0,0 +1,319 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * A {@link DatagramTransport} that wraps another transport and adds the same
+ * kinds of errors as A2: lost, delayed, reordered and ghost packets, and
+ * packets with errors in the payload or header. Together with
+ * {@link LoopbackTransport} this lets the connection layer be tested and
+ * benchmarked offline. <br>
+ * <br>
+ * All decisions come from random generators seeded in the constructor, and
+ * every packet consumes the same number of random draws whatever is decided
+ * for it, so the same seed and the same traffic give the same errors on every
+ * run. Errors in payload and header are added on the receiving side, after
+ * the inner transport has computed the checksum, so they are detected by
+ * {@link AbstractConnection#isValid(KtnDatagram)} like errors from A2. <br>
+ * <br>
+ * Delays are exponentially distributed with mean {@link #delayMillis}.
+ * Delayed packets are sent by a single scheduler thread in order of their due
+ * time.
+ */
+public class NetworkEmulator implements DatagramTransport {
+
+    /** Default mean delay for delayed packets, in milliseconds. */
+    public static final int DEFAULT_DELAY_MILLIS = 300;
+    /** How long a packet picked for reordering waits to be overtaken. */
+    public static final int REORDER_HOLD_MILLIS = 50;
+
+    private final DatagramTransport transport;
+    private final Random sendRandom;
+    private final Random receiveRandom;
+
+    private double loss, delay, ghost, payloadError, headerError, reorder;
+    private int delayMillis = DEFAULT_DELAY_MILLIS;
+    private boolean onlyData = false;
+
+    private final ScheduledThreadPoolExecutor scheduler;
+    /** Packet waiting to be overtaken by the next packet, guarded by this. */
+    private KtnDatagram held;
+    private ScheduledFuture<?> heldFlush;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+    private final AtomicLong ghosts = new AtomicLong();
+    private final AtomicLong payloadErrors = new AtomicLong();
+    private final AtomicLong headerErrors = new AtomicLong();
+
+    /**
+     * Create an emulator that does not add any errors until configured.
+     *
+     * @param transport
+     *            the transport to send and receive through.
+     * @param seed
+     *            seed for all random decisions.
+     */
+    public NetworkEmulator(DatagramTransport transport, long seed) {
+        this.transport = transport;
+        sendRandom = new Random(seed);
+        receiveRandom = new Random(seed ^ 0x5DEECE66DL);
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "NetworkEmulator-delay");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Create an emulator with the error rates from settings.xml, i.e. the
+     * elements errors, loss, delay, ghost, payload, header and onlydata.
+     * Elements that are missing count as zero.
+     *
+     * @param transport
+     *            the transport to send and receive through.
+     * @param seed
+     *            seed for all random decisions.
+     * @return the configured emulator.
+     */
+    public static NetworkEmulator fromSettings(DatagramTransport transport, long seed) {
+        NetworkEmulator emulator = new NetworkEmulator(transport, seed);
+        if (!"true".equals(DatagramTransports.readSetting("errors"))) return emulator;
+        emulator.setLoss(rate("loss"));
+        emulator.setDelay(rate("delay"), DEFAULT_DELAY_MILLIS);
+        emulator.setGhost(rate("ghost"));
+        emulator.setPayloadError(rate("payload"));
+        emulator.setHeaderError(rate("header"));
+        emulator.setOnlyData("true".equals(DatagramTransports.readSetting("onlydata")));
+        return emulator;
+    }
+
+    private static double rate(String element) {
+        String value = DatagramTransports.readSetting(element);
+        return value == null ? 0.0 : Double.parseDouble(value);
+    }
+
+    /** @param loss probability that a packet is lost. */
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+
+    /**
+     * @param delay
+     *            probability that a packet is delayed.
+     * @param meanMillis
+     *            mean delay of delayed packets.
+     */
+    public void setDelay(double delay, int meanMillis) {
+        this.delay = delay;
+        this.delayMillis = meanMillis;
+    }
+
+    /** @param ghost probability that a ghost packet is sent along with a packet. */
+    public void setGhost(double ghost) {
+        this.ghost = ghost;
+    }
+
+    /** @param payloadError probability of an error in a received payload. */
+    public void setPayloadError(double payloadError) {
+        this.payloadError = payloadError;
+    }
+
+    /** @param headerError probability of an error in a received header. */
+    public void setHeaderError(double headerError) {
+        this.headerError = headerError;
+    }
+
+    /** @param reorder probability that a packet is overtaken by the next one. */
+    public void setReorder(double reorder) {
+        this.reorder = reorder;
+    }
+
+    /** @param onlyData true to only add errors to data packets, like A2. */
+    public void setOnlyData(boolean onlyData) {
+        this.onlyData = onlyData;
+    }
+
+    public void send(KtnDatagram packet) throws ClException, IOException {
+        double lossDraw, delayDraw, ghostDraw, reorderDraw, delaySample;
+        int ghostPort, ghostSeq;
+        synchronized (sendRandom) {
+            lossDraw = sendRandom.nextDouble();
+            delayDraw = sendRandom.nextDouble();
+            delaySample = sendRandom.nextDouble();
+            ghostDraw = sendRandom.nextDouble();
+            ghostPort = 1024 + sendRandom.nextInt(60000);
+            ghostSeq = sendRandom.nextInt(100000);
+            reorderDraw = sendRandom.nextDouble();
+        }
+        if (onlyData && packet.getFlag() != Flag.NONE) {
+            transport.send(packet);
+            return;
+        }
+        if (lossDraw < loss) {
+            dropped.incrementAndGet();
+            CoLog.debug(packet, "NetworkEmulator", "Emulator: dropped");
+            return;
+        }
+        if (ghostDraw < ghost) {
+            KtnDatagram ghostPacket = copy(packet);
+            ghostPacket.setSrc_port(ghostPort);
+            ghostPacket.setSeq_nr(ghostSeq);
+            ghosts.incrementAndGet();
+            transport.send(ghostPacket);
+        }
+        KtnDatagram copy = copy(packet);
+        if (delayDraw < delay) {
+            long millis = (long)(-delayMillis * Math.log(1.0 - delaySample));
+            delayed.incrementAndGet();
+            scheduler.schedule(new DelayedSend(copy), millis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        synchronized (this) {
+            KtnDatagram overtaken = held;
+            if (overtaken != null) {
+                held = null;
+                heldFlush.cancel(false);
+            }
+            if (reorderDraw < reorder && overtaken == null) {
+                reordered.incrementAndGet();
+                held = copy;
+                heldFlush = scheduler.schedule(new Runnable() {
+                    public void run() {
+                        flushHeld();
+                    }
+                }, REORDER_HOLD_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            transport.send(copy);
+            if (overtaken != null) transport.send(overtaken);
+        }
+    }
+
+    public KtnDatagram receive(int port) throws IOException {
+        KtnDatagram packet = transport.receive(port);
+        if (packet == null) return null;
+
+        double payloadDraw, headerDraw;
+        int position, field;
+        synchronized (receiveRandom) {
+            payloadDraw = receiveRandom.nextDouble();
+            headerDraw = receiveRandom.nextDouble();
+            position = receiveRandom.nextInt(Integer.MAX_VALUE);
+            field = receiveRandom.nextInt(3);
+        }
+        if (onlyData && packet.getFlag() != Flag.NONE) return packet;
+
+        boolean corruptPayload = payloadDraw < payloadError && packet.getPayload() instanceof String
+                && ((String)packet.getPayload()).length() > 0;
+        boolean corruptHeader = headerDraw < headerError;
+        if (!corruptPayload && !corruptHeader) return packet;
+
+        // The sender may still hold the same object for retransmission.
+        packet = copy(packet);
+        if (corruptPayload) {
+            char[] chars = ((String)packet.getPayload()).toCharArray();
+            int i = position % chars.length;
+            chars[i] = (char)(chars[i] ^ 0x20);
+            setKeepingChecksum(packet, new String(chars));
+            payloadErrors.incrementAndGet();
+        }
+        if (corruptHeader) {
+            long checksum = packet.getChecksum();
+            if (field == 0) packet.setSeq_nr(packet.getSeq_nr() ^ (1 << (position % 16)));
+            else if (field == 1) packet.setAck(packet.getAck() ^ (1 << (position % 16)));
+            else packet.setSrc_port(packet.getSrc_port() ^ (1 << (position % 16)));
+            packet.setChecksum(checksum);
+            headerErrors.incrementAndGet();
+        }
+        return packet;
+    }
+
+    public void cancelReceive(int port) throws IOException {
+        transport.cancelReceive(port);
+    }
+
+    public void release(int port) throws IOException {
+        transport.release(port);
+    }
+
+    /** Stop the scheduler thread. Delayed packets not yet sent are lost. */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public String toString() {
+        return "dropped=" + dropped + " delayed=" + delayed + " reordered=" + reordered
+                + " ghosts=" + ghosts + " payloadErrors=" + payloadErrors + " headerErrors="
+                + headerErrors;
+    }
+
+    private synchronized void flushHeld() {
+        if (held == null) return;
+        KtnDatagram packet = held;
+        held = null;
+        sendQuietly(packet);
+    }
+
+    private void sendQuietly(KtnDatagram packet) {
+        try {
+            transport.send(packet);
+        }
+        catch (Exception e) {
+            CoLog.warn("NetworkEmulator", "Emulator: delayed send failed: {}", e);
+        }
+    }
+
+    private static void setKeepingChecksum(KtnDatagram packet, String payload) {
+        long checksum = packet.getChecksum();
+        packet.setPayload(payload);
+        packet.setChecksum(checksum);
+    }
+
+    /**
+     * Copy all fields of a datagram, including its checksum.
+     *
+     * @param packet
+     *            the datagram to copy.
+     * @return a new datagram equal to the given one.
+     */
+    static KtnDatagram copy(KtnDatagram packet) {
+        KtnDatagram copy = new KtnDatagram();
+        copy.setFlag(packet.getFlag());
+        copy.setSeq_nr(packet.getSeq_nr());
+        copy.setAck(packet.getAck());
+        copy.setSrc_addr(packet.getSrc_addr());
+        copy.setSrc_port(packet.getSrc_port());
+        copy.setDest_addr(packet.getDest_addr());
+        copy.setDest_port(packet.getDest_port());
+        copy.setPayload(packet.getPayload());
+        copy.setChecksum(packet.getChecksum());
+        return copy;
+    }
+
+    /** Sends a delayed packet when it is due. */
+    private class DelayedSend implements Runnable {
+        private final KtnDatagram packet;
+
+        public DelayedSend(KtnDatagram packet) {
+            this.packet = packet;
+        }
+
+        public void run() {
+            sendQuietly(packet);
+        }
+    }
+}
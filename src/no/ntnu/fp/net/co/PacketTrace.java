@@ -0,0 +1,176 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * An append-only binary file with one fixed-size record per packet sent or
+ * received, written through a memory-mapped buffer. Meant to replace reading
+ * the Log/*.txt tables when looking at what happened on the wire; see
+ * {@link TraceAnalyzer} for reading it back. <br>
+ * <br>
+ * The file starts with a {@value #HEADER_SIZE} byte header: the magic
+ * {@link #MAGIC}, a short version, a short record size and the wall clock
+ * time in milliseconds when the trace was started. Each record is
+ * {@value #RECORD_SIZE} bytes, big endian:
+ *
+ * <pre>
+ *  0  long  time, microseconds since 1970
+ *  8  byte  direction, SEND or RECEIVE
+ *  9  byte  flag, see flagCode()
+ * 10  byte  checksum, CHECKSUM_OK, CHECKSUM_BAD or CHECKSUM_UNCHECKED
+ * 11  byte  reserved
+ * 12  int   source address, IPv4, 0 if not a dotted quad
+ * 16  int   destination address
+ * 20  char  source port
+ * 22  char  destination port
+ * 24  int   sequence number
+ * 28  int   ack number
+ * 32  int   payload length in characters
+ * 36  int   reserved
+ * </pre>
+ *
+ * Times are wall clock so traces from the client and the server can be
+ * merged, but advance with System.nanoTime() so they never go backwards
+ * within one trace. The file is mapped {@value #CHUNK_SIZE} bytes at a time;
+ * unwritten space reads as zero, so a reader stops at the first record with
+ * time 0. close() cuts the file to the written length.
+ */
+public class PacketTrace {
+
+    /** "KTNT". */
+    public static final int MAGIC = 0x4B544E54;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 40;
+
+    public static final byte SEND = 0;
+    public static final byte RECEIVE = 1;
+
+    public static final byte CHECKSUM_UNCHECKED = 0;
+    public static final byte CHECKSUM_OK = 1;
+    public static final byte CHECKSUM_BAD = 2;
+
+    /** Bytes mapped at a time, a multiple of RECORD_SIZE after the header. */
+    static final int CHUNK_SIZE = HEADER_SIZE + 26214 * RECORD_SIZE;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long startMillis;
+    private final long startNanos;
+
+    private MappedByteBuffer chunk;
+    private long chunkStart;
+    private boolean closed = false;
+
+    /**
+     * Create a trace, replacing the file if it exists.
+     *
+     * @param path
+     *            the file to write.
+     * @throws IOException
+     *             if the file can not be created or mapped.
+     */
+    public PacketTrace(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        chunkStart = 0;
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHUNK_SIZE);
+        chunk.putInt(MAGIC).putShort((short)VERSION).putShort((short)RECORD_SIZE);
+        chunk.putLong(startMillis);
+    }
+
+    /**
+     * Append a record for a packet.
+     *
+     * @param direction
+     *            SEND or RECEIVE.
+     * @param packet
+     *            the packet.
+     * @param checksum
+     *            CHECKSUM_OK, CHECKSUM_BAD or CHECKSUM_UNCHECKED.
+     */
+    public synchronized void record(byte direction, KtnDatagram packet, byte checksum) {
+        if (closed) return;
+        long micros = startMillis * 1000 + (System.nanoTime() - startNanos) / 1000;
+        try {
+            if (chunk.remaining() < RECORD_SIZE) nextChunk();
+        }
+        catch (IOException e) {
+            CoLog.warn("PacketTrace", "Could not extend trace, stopping: {}", e);
+            closed = true;
+            return;
+        }
+        Object payload = packet.getPayload();
+        ByteBuffer b = chunk;
+        b.putLong(micros);
+        b.put(direction).put(flagCode(packet.getFlag())).put(checksum).put((byte)0);
+        b.putInt(Endpoints.ipv4(packet.getSrc_addr()));
+        b.putInt(Endpoints.ipv4(packet.getDest_addr()));
+        b.putChar((char)packet.getSrc_port()).putChar((char)packet.getDest_port());
+        b.putInt(packet.getSeq_nr()).putInt(packet.getAck());
+        b.putInt(payload instanceof String ? ((String)payload).length() : 0);
+        b.putInt(0);
+    }
+
+    /**
+     * Flush the records to disk and cut the file to the records written.
+     * Further records are ignored.
+     *
+     * @throws IOException
+     *             if the file could not be written.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        chunk.force();
+        long length = chunkStart + chunk.position();
+        chunk = null;
+        try {
+            file.setLength(length);
+        }
+        catch (IOException e) {
+            // Some platforms refuse to cut a mapped file; readers stop at the
+            // first empty record anyway.
+        }
+        file.close();
+    }
+
+    private void nextChunk() throws IOException {
+        chunk.force();
+        chunkStart += chunk.position();
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK_SIZE);
+    }
+
+    /** Flag as stored in a record; not the ordinal, so the format is fixed. */
+    static byte flagCode(Flag flag) {
+        if (flag == Flag.NONE) return 0;
+        if (flag == Flag.SYN) return 1;
+        if (flag == Flag.SYN_ACK) return 2;
+        if (flag == Flag.ACK) return 3;
+        if (flag == Flag.FIN) return 4;
+        return -1;
+    }
+
+    /** Name of a stored flag code. */
+    static String flagName(int code) {
+        switch (code) {
+        case 0: return "NONE";
+        case 1: return "SYN";
+        case 2: return "SYN_ACK";
+        case 3: return "ACK";
+        case 4: return "FIN";
+        default: return "?";
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package no.ntnu.fp.net.co;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Receives protocol events from the connection layer, for a profiler or
+ * recorder to correlate with e.g. garbage collection and thread scheduling.
+ * Installed through {@link ProtocolEvents}. Implementations are called on the
+ * protocol threads and must return quickly.
+ */
+public interface ProtocolEventSink {
+
+    /** A packet was handed to the transport for the first time. */
+    public void packetSent(KtnDatagram packet);
+
+    /**
+     * The retransmit timer sent a data packet again.
+     *
+     * @param attempt
+     *            2 for the first retransmit, and so on.
+     */
+    public void retransmit(KtnDatagram packet, int attempt);
+
+    /**
+     * An ack was matched to the data packet it acknowledges.
+     *
+     * @param rttNanos
+     *            time since the data packet was first sent, or -1 if it was
+     *            retransmitted and the time is ambiguous.
+     */
+    public void ackMatched(KtnDatagram ack, long rttNanos);
+
+    /** A packet from an endpoint other than the peer was dropped. */
+    public void ghostDropped(KtnDatagram packet);
+
+    /** A packet failed its checksum check. */
+    public void checksumInvalid(KtnDatagram packet);
+
+    /**
+     * A phase of connection setup finished.
+     *
+     * @param phase
+     *            "connect" (SYN sent to SYN_ACK received) or "accept" (SYN
+     *            received to ACK received).
+     * @param localPort
+     *            local port of the connection.
+     * @param durationNanos
+     *            time the phase took.
+     * @param success
+     *            false if the phase timed out or failed.
+     */
+    public void handshake(String phase, int localPort, long durationNanos, boolean success);
+
+    /**
+     * close() returned.
+     *
+     * @param fromState
+     *            the state close() was called in.
+     * @param durationNanos
+     *            time close() took.
+     */
+    public void closed(int localPort, String fromState, long durationNanos);
+}
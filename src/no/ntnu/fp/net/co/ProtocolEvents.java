@@ -0,0 +1,98 @@
+package no.ntnu.fp.net.co;
+
+import java.lang.reflect.InvocationTargetException;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Holds the {@link ProtocolEventSink} the connection layer reports to. <br>
+ * <br>
+ * At class load a Java Flight Recorder sink is installed if the running VM
+ * has JFR and the classes from the jfr source folder are on the class path;
+ * otherwise a sink that does nothing is used. {@link #ENABLED} is false in
+ * the second case, and callers check it before any work done only for the
+ * events, e.g. reading the clock, so disabled events cost a single constant
+ * test. The JFR sink itself only creates events the recording has enabled.
+ * Setting the system property {@value #PROPERTY} to false turns the JFR sink
+ * off.
+ */
+public final class ProtocolEvents {
+
+    /** System property that can turn the JFR sink off. */
+    public static final String PROPERTY = "ktn.jfr";
+
+    private static final String JFR_SINK = "no.ntnu.fp.net.co.jfr.JfrProtocolEventSink";
+
+    /** The sink in use, never null. */
+    public static final ProtocolEventSink SINK = load();
+
+    /** True if events go anywhere, i.e. the sink is not the no-op one. */
+    public static final boolean ENABLED = !(SINK instanceof NoOp);
+
+    private ProtocolEvents() {
+    }
+
+    private static ProtocolEventSink load() {
+        if ("false".equals(System.getProperty(PROPERTY))) return new NoOp();
+        Class<?> sink;
+        try {
+            Class.forName("jdk.jfr.Event");
+            sink = Class.forName(JFR_SINK);
+        }
+        catch (ClassNotFoundException e) {
+            // No JFR in this VM, or the jfr classes are not built.
+            return new NoOp();
+        }
+        catch (LinkageError e) {
+            // The jfr classes were built for a newer VM than this one.
+            return new NoOp();
+        }
+        try {
+            return (ProtocolEventSink)sink.getDeclaredConstructor().newInstance();
+        }
+        catch (NoSuchMethodException e) {
+            return failed(e);
+        }
+        catch (InstantiationException e) {
+            return failed(e);
+        }
+        catch (IllegalAccessException e) {
+            return failed(e);
+        }
+        catch (InvocationTargetException e) {
+            return failed(e.getCause());
+        }
+        catch (LinkageError e) {
+            return failed(e);
+        }
+    }
+
+    private static ProtocolEventSink failed(Throwable cause) {
+        CoLog.warn("ProtocolEvents", "Could not create the JFR event sink: {}", cause);
+        return new NoOp();
+    }
+
+    /** Sink used when there is nothing to report to. */
+    private static class NoOp implements ProtocolEventSink {
+        public void packetSent(KtnDatagram packet) {
+        }
+
+        public void retransmit(KtnDatagram packet, int attempt) {
+        }
+
+        public void ackMatched(KtnDatagram ack, long rttNanos) {
+        }
+
+        public void ghostDropped(KtnDatagram packet) {
+        }
+
+        public void checksumInvalid(KtnDatagram packet) {
+        }
+
+        public void handshake(String phase, int localPort, long durationNanos, boolean success) {
+        }
+
+        public void closed(int localPort, String fromState, long durationNanos) {
+        }
+    }
+}
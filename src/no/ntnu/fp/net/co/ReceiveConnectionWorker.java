@@ -3,23 +3,94 @@
  */
 package no.ntnu.fp.net.co;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * @author Marius Bjerke
+ * @author Marius Bjerke <br>
+ * <br>
+ *         Accepts connections on its own thread and calls the
+ *         ConnectionListener for each on a bounded pool of handler threads,
+ *         so a slow listener does not hold up the next accept. A connection
+ *         that arrives while every handler is busy and the queue in front of
+ *         them is full is closed at once: the server sheds load instead of
+ *         piling up connections it can not serve. <br>
+ * <br>
+ *         Accepting survives failures: a connection whose handshake times
+ *         out is skipped, and after other errors the worker waits a little
+ *         longer each time before it accepts again, up to
+ *         {@value #MAX_BACKOFF} ms. {@link #stopRunning()} interrupts an
+ *         accept that is waiting for a connection, but lets a handshake under
+ *         way finish; {@link #shutdown(long)} also waits for the accepted
+ *         connections to be handled, until a deadline.
  */
 public class ReceiveConnectionWorker extends Thread {
 
-    private boolean isRunning;
+    /** Handler threads by default. */
+    public static final int DEFAULT_HANDLERS = 8;
+
+    /** Accepted connections waiting for a handler by default. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    /** Wait after the first failure, in milliseconds. */
+    public static final long MIN_BACKOFF = 50;
+
+    /** Longest wait between failures, in milliseconds. */
+    public static final long MAX_BACKOFF = 2000;
+
+    private volatile boolean isRunning;
     private Connection aConnection;
     private ConnectionListener connectionListener;
 
+    private final ThreadPoolExecutor handlers;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
     /**
      * @param aConnection
      *            a Connection object that is connected with remote instance
      */
     public ReceiveConnectionWorker(Connection aConnection, ConnectionListener listener) {
+        this(aConnection, listener, DEFAULT_HANDLERS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param aConnection
+     *            the connection to accept on.
+     * @param handlerThreads
+     *            most connectionReceived() calls at the same time.
+     * @param queueCapacity
+     *            accepted connections that may wait for a handler before
+     *            new ones are closed.
+     */
+    public ReceiveConnectionWorker(Connection aConnection, ConnectionListener listener,
+            int handlerThreads, int queueCapacity) {
+        super("ReceiveConnectionWorker");
         isRunning = false;
         this.aConnection = aConnection;
         connectionListener = listener;
+        handlers = new ThreadPoolExecutor(handlerThreads, handlerThreads, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ReceiveConnectionWorker-handler-"
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
     }
 
     /**
@@ -27,19 +98,134 @@ public class ReceiveConnectionWorker extends Thread {
      */
     public void run() {
         isRunning = true;
-        try {
-            while (isRunning) {
-                Connection conn = aConnection.accept();
-                connectionListener.connectionReceived(conn);
+        long backoff = 0;
+        while (isRunning) {
+            Connection conn;
+            try {
+                conn = aConnection.accept();
+            }
+            catch (SocketTimeoutException e) {
+                // The other side did not finish the handshake; not our fault.
+                continue;
+            }
+            catch (InterruptedIOException e) {
+                // From stopRunning(), or a stray interrupt if still running.
+                continue;
+            }
+            catch (IOException e) {
+                backoff = failed(e, backoff);
+                continue;
+            }
+            catch (RuntimeException e) {
+                backoff = failed(e, backoff);
+                continue;
             }
+            backoff = 0;
+            if (conn == null) continue;
+            // Also after stopRunning(): the handshake was under way, so finish the job.
+            admit(conn);
+        }
+    }
+
+    /** Hand a connection to a handler, or close it if they are all busy. */
+    private void admit(final Connection conn) {
+        try {
+            handlers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        connectionListener.connectionReceived(conn);
+                    }
+                    catch (RuntimeException e) {
+                        CoLog.warn("ReceiveConnectionWorker", "Listener failed: {}", e);
+                    }
+                }
+            });
+            accepted.incrementAndGet();
+        }
+        catch (RejectedExecutionException e) {
+            shed.incrementAndGet();
+            CoLog.warn("ReceiveConnectionWorker", "All handlers busy, closing new connection");
+            close(conn);
+        }
+    }
+
+    /** Count a failure and wait before accepting again. @return the next wait. */
+    private long failed(Exception e, long backoff) {
+        failures.incrementAndGet();
+        long wait = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+        CoLog.warn("ReceiveConnectionWorker", "accept() failed, waiting {} ms: {}", Long
+                .valueOf(wait), e);
+        try {
+            Thread.sleep(wait);
+        }
+        catch (InterruptedException ie) {
+            // stopRunning(); the loop sees it.
+        }
+        return wait;
+    }
+
+    private static void close(Connection conn) {
+        try {
+            conn.close();
         }
-        catch (Exception e) {
-            e.printStackTrace(); // TODO: better handling of exceptions
+        catch (IOException e) {
+            // Closed anyway as far as we are concerned.
         }
     }
-    
+
+    /**
+     * Stop accepting: an accept() waiting for a new connection is interrupted.
+     * A handshake already under way is finished, and its connection is handled
+     * like the ones accepted before.
+     */
     public void stopRunning() {
         isRunning = false;
+        interrupt();
+    }
+
+    /**
+     * Stop accepting, and wait for the accepted connections to be handled:
+     * first for a handshake under way to finish and its connection to be
+     * queued, then for the handlers to finish. What is not done at the
+     * deadline is interrupted, and a connection accepted after it is closed.
+     * 
+     * @param timeoutMillis
+     *            longest time to wait in all.
+     * @return true if everything was done before the deadline.
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting.
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        stopRunning();
+        join(Math.max(1, deadline - System.currentTimeMillis()));
+        handlers.shutdown();
+        long left = deadline - System.currentTimeMillis();
+        if (!isAlive() && left > 0 && handlers.awaitTermination(left, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        handlers.shutdownNow();
+        return false;
+    }
+
+    /** @return connections handed to a handler. */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /** @return connections closed because all handlers were busy. */
+    public long getShed() {
+        return shed.get();
+    }
+
+    /** @return accepts that failed with an error other than a timeout. */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /** @return connections being handled or waiting for a handler. */
+    public int getInFlight() {
+        return handlers.getActiveCount() + handlers.getQueue().size();
     }
 
     /**
@@ -3,10 +3,18 @@ package no.ntnu.fp.net.co;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.co.Connection;
 
 /**
@@ -15,6 +23,16 @@ import no.ntnu.fp.net.co.Connection;
  * to this class. The MessageListener.messageReceived() method will be called
  * each time a new incoming message is received. <br>
  * <br>
+ * The worker thread only receives: it hands each message to a bounded queue,
+ * and the listeners are called by a dispatch task on an {@link Executor}, so
+ * a slow listener does not stop the connection from being read until the
+ * queue is full. Then the worker waits, and the connection stops
+ * acknowledging, which slows the sender down. The dispatch task runs one at
+ * a time per worker, so every listener gets the messages in order, and
+ * connectionClosed() after the last one. A {@link BatchMessageListener} gets
+ * all messages waiting in one call. Listeners can be added and removed from
+ * any thread, also from a listener. <br>
+ * <br>
  * This interface is provided by the core "Fellesprosjekt" development team.
  * This class is not needed to solve the KTN excerise, but might be used by the
  * "fellesprosjekt" application.
@@ -24,18 +42,66 @@ import no.ntnu.fp.net.co.Connection;
  */
 public class ReceiveMessageWorker extends Thread {
 
-    private boolean isRunning;
+    /** Messages waiting for the listeners by default. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** Most messages given to a BatchMessageListener in one call. */
+    public static final int MAX_BATCH = 256;
+
+    private volatile boolean isRunning;
     private Connection aConnection;
-    private List<MessageListener> messageListenerList;
+    private final List<MessageListener> messageListenerList = new CopyOnWriteArrayList<MessageListener>();
+
+    private final BlockingQueue<String> handoff;
+    private final Executor dispatcher;
+    /** True if the dispatcher was made by this worker and is shut down by it. */
+    private final boolean ownDispatcher;
+    /** True while a dispatch task is submitted or running. */
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+
+    /** Set when the worker stops receiving, after the last message is queued. */
+    private volatile boolean finished = false;
+    /** Set before finished if the connection was closed by the other side. */
+    private volatile boolean closedByPeer = false;
+    /** Only used by the dispatch task. */
+    private boolean finishDispatched = false;
 
     /**
+     * Call the listeners on a thread of this worker's own.
+     * 
      * @param aConnection
      *            a Connection object that is connected with remote instance
      */
     public ReceiveMessageWorker(Connection aConnection) {
+        this(aConnection, null, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param aConnection
+     *            a Connection object that is connected with remote instance
+     * @param dispatcher
+     *            calls the listeners; may be shared with other workers. If
+     *            null, the worker uses a thread of its own.
+     * @param queueCapacity
+     *            messages received and not yet given to the listeners before
+     *            the worker stops receiving.
+     */
+    public ReceiveMessageWorker(Connection aConnection, Executor dispatcher, int queueCapacity) {
         isRunning = false;
         this.aConnection = aConnection;
-        messageListenerList = new ArrayList<MessageListener>();
+        handoff = new ArrayBlockingQueue<String>(queueCapacity);
+        ownDispatcher = dispatcher == null;
+        this.dispatcher = ownDispatcher ? newDispatcher() : dispatcher;
+    }
+
+    private ExecutorService newDispatcher() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, getName() + "-dispatch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     /**
@@ -63,32 +129,100 @@ public class ReceiveMessageWorker extends Thread {
      */
     public void run() {
         isRunning = true;
-        int counter = 0;
         try {
             while (isRunning) {
                 String message = aConnection.receive();
-                Iterator<MessageListener> iterator = messageListenerList.iterator();
-                while (iterator.hasNext()) {
-                    MessageListener listener = iterator.next();
-                    listener.messageReceived(message);
-                }
+                // Blocks while the listeners are behind.
+                handoff.put(message);
+                dispatch();
             }
         }
         catch (EOFException e) {
             try {
                 aConnection.close();
-                isRunning = false;
-                for (MessageListener ml : messageListenerList) {
-                    ml.connectionClosed(aConnection);
-                }
             }
             catch (IOException e2) {
                 // TODO: better handle exception
             }
+            closedByPeer = true;
         }
         catch (IOException e) {
             // TODO: better handle exception
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            isRunning = false;
+            finished = true;
+            dispatch();
+        }
+    }
+
+    /** Make sure a dispatch task will see what was queued. */
+    private void dispatch() {
+        if (!dispatching.compareAndSet(false, true)) return;
+        try {
+            dispatcher.execute(dispatchTask);
+        }
+        catch (RejectedExecutionException e) {
+            dispatching.set(false);
+            CoLog.warn("ReceiveMessageWorker", "Dispatcher refused the listeners: {}", e);
+        }
+    }
+
+    /**
+     * Gives one batch to the listeners and submits itself again if there is
+     * more, so a shared dispatcher is not held by one busy connection.
+     */
+    private final Runnable dispatchTask = new Runnable() {
+        public void run() {
+            // Read before draining: if it is set, nothing is queued after.
+            boolean wasFinished = finished;
+            List<String> batch = new ArrayList<String>(Math.min(handoff.size(), MAX_BATCH));
+            handoff.drainTo(batch, MAX_BATCH);
+            if (!batch.isEmpty()) {
+                deliver(Collections.unmodifiableList(batch));
+            }
+            else if (wasFinished && !finishDispatched) {
+                finishDispatched = true;
+                if (closedByPeer) deliverClosed();
+                if (ownDispatcher) ((ExecutorService)dispatcher).shutdown();
+                return;
+            }
+            dispatching.set(false);
+            if (!handoff.isEmpty() || finished && !finishDispatched) dispatch();
+        }
+    };
+
+    private void deliver(List<String> batch) {
+        for (MessageListener listener : messageListenerList) {
+            try {
+                if (listener instanceof BatchMessageListener) {
+                    ((BatchMessageListener)listener).messagesReceived(batch);
+                }
+                else {
+                    for (int i = 0; i < batch.size(); i++) {
+                        listener.messageReceived(batch.get(i));
+                    }
+                }
+            }
+            catch (RuntimeException e) {
+                // One listener failing must not keep the others from the messages.
+                CoLog.warn("ReceiveMessageWorker", "Listener failed: {}", e);
+            }
+        }
+    }
+
+    private void deliverClosed() {
+        for (MessageListener ml : messageListenerList) {
+            try {
+                ml.connectionClosed(aConnection);
+            }
+            catch (RuntimeException e) {
+                CoLog.warn("ReceiveMessageWorker", "Listener failed: {}", e);
+            }
+        }
     }
 
     /**
@@ -105,4 +239,19 @@ public class ReceiveMessageWorker extends Thread {
         public void connectionClosed(Connection conn);
 
     }
+
+    /**
+     * A MessageListener that takes the messages waiting in one call instead
+     * of one messageReceived() per message, e.g. to update a view once.
+     * messageReceived() is not called for a listener of this kind.
+     */
+    public interface BatchMessageListener extends MessageListener {
+
+        /**
+         * @param messages
+         *            one or more messages, oldest first.
+         */
+        public void messagesReceived(List<String> messages);
+
+    }
 }
@@ -3,17 +3,15 @@ package no.ntnu.fp.net.co;
 import java.io.IOException;
 import java.util.TimerTask;
 
-import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 import no.ntnu.fp.net.co.AbstractConnection;
 
 /**
  * A helper class used when sending datagrams and waiting for ack. The class
  * specifies a TimerTask used in the Timer in the send-method of an
- * Connection-implementation. The class will resend a datagram using a socket at
- * timeout. The datagram and socket are specified in the constructor.
+ * Connection-implementation. The class will resend a datagram using a transport
+ * at timeout. The datagram and transport are specified in the constructor.
  * 
  * @see AbstractConnection#simplySendPacket(KtnDatagram)
  * @see java.util.TimerTask
@@ -22,43 +20,74 @@ import no.ntnu.fp.net.co.AbstractConnection;
  */
 public class SendTimer extends TimerTask {
 
-    private ClSocket socket;
+    private DatagramTransport transport;
     private KtnDatagram packet;
-    private int tries;
+    private ConnectionMetrics metrics;
+    private volatile int tries;
 
     /**
      * Simple constructor.
      * 
-     * @param socket
-     *            - the socket in which the datagram is to be send if timeout
+     * @param transport
+     *            - the transport through which the datagram is to be send if
+     *            timeout
      * @param packet
      *            - the packet to send if timeout
      */
-    public SendTimer(ClSocket socket, KtnDatagram packet) {
-        this.socket = socket;
+    public SendTimer(DatagramTransport transport, KtnDatagram packet) {
+        this(transport, packet, null);
+    }
+
+    /**
+     * Constructor that also counts sends and retransmissions.
+     * 
+     * @param transport
+     *            - the transport through which the datagram is to be send if
+     *            timeout
+     * @param packet
+     *            - the packet to send if timeout
+     * @param metrics
+     *            - the metrics to count in, or null
+     */
+    public SendTimer(DatagramTransport transport, KtnDatagram packet, ConnectionMetrics metrics) {
+        this.transport = transport;
         this.packet = packet;
+        this.metrics = metrics;
         tries = 0;
     }
 
+    /** @return how many times the datagram has been sent so far. */
+    public int getTries() {
+        return tries;
+    }
+
     /**
      * Perform a packet (re)send. The method will be called upon a timeout from
      * the assosiated timer. If called, it means that a correct ack is not
      * received within the desired interval, and the datagram is resend on the
-     * same socket.
+     * same transport.
      */
     public void run() {
         try {
-            Log.writeToLog(packet, "Sending this datagram (try: " + ++tries + ")", "SendTimer");
+            tries++;
+            if (CoLog.isEnabled(CoLog.Level.DEBUG))
+                CoLog.debug(packet, "SendTimer", "Sending this datagram (try: {})", tries);
             
-            socket.send(packet);
+            transport.send(packet);
+            if (metrics != null) {
+                metrics.packetSent();
+                if (tries > 1) metrics.retransmit();
+            }
+            if (ProtocolEvents.ENABLED) {
+                if (tries == 1) ProtocolEvents.SINK.packetSent(packet);
+                else ProtocolEvents.SINK.retransmit(packet, tries);
+            }
         }
         catch (ClException e) {
-            Log.writeToLog("ERROR: Could not establish a connection to " + packet.getDest_addr()
-                    + ":" + packet.getDest_port(), "SendTimer");
+            CoLog.warn(packet, "SendTimer", "Could not establish a connection");
         }
         catch (IOException e) {
-            Log.writeToLog("ERROR: Could not establish a connection to " + packet.getDest_addr()
-                    + ":" + packet.getDest_port(), "SendTimer");
+            CoLog.warn(packet, "SendTimer", "Could not establish a connection");
         }
     }
 }
@@ -0,0 +1,75 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Remembers which of the last {@value #SIZE} sequence numbers have been
+ * delivered, as a ring of bits, so a receiver can recognise duplicates in
+ * constant time without allocating. Sequence numbers older than the window
+ * count as duplicates, since the sender can not still be waiting for them.
+ * Numbers are compared with wrap-around. Not thread-safe.
+ */
+class SequenceWindow {
+
+    /** Sequence numbers remembered, a multiple of 64. */
+    static final int SIZE = 256;
+
+    private final long[] bits = new long[SIZE / 64];
+    /** Highest sequence number delivered, valid if started. */
+    private int highest;
+    private boolean started = false;
+
+    /**
+     * @param seq
+     *            sequence number of a received packet.
+     * @return true if it was delivered before or is older than the window.
+     */
+    boolean isDuplicate(int seq) {
+        if (!started) return false;
+        int behind = highest - seq;
+        if (behind < 0) return false;
+        if (behind >= SIZE) return true;
+        return (bits[(seq & (SIZE - 1)) >>> 6] & 1L << seq) != 0;
+    }
+
+    /**
+     * Remember that a sequence number was delivered, moving the window
+     * forward if it is the highest so far.
+     *
+     * @param seq
+     *            the sequence number.
+     */
+    void delivered(int seq) {
+        if (!started) {
+            started = true;
+            highest = seq;
+        }
+        else {
+            int ahead = seq - highest;
+            if (ahead >= SIZE) {
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] = 0;
+                }
+                highest = seq;
+            }
+            else if (ahead > 0) {
+                // Forget the numbers the window slides past.
+                for (int s = highest + 1; s != seq; s++) {
+                    clear(s);
+                }
+                highest = seq;
+            }
+            else if (-ahead >= SIZE) {
+                return; // Older than the window, nothing to remember.
+            }
+        }
+        bits[(seq & (SIZE - 1)) >>> 6] |= 1L << seq;
+    }
+
+    /** @return the highest sequence number delivered, if any was. */
+    int highest() {
+        return highest;
+    }
+
+    private void clear(int seq) {
+        bits[(seq & (SIZE - 1)) >>> 6] &= ~(1L << seq);
+    }
+}
@@ -0,0 +1,197 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message that is sent unchanged to many connections, e.g. a chat line the
+ * server broadcasts. The wire forms of the message are made the first time a
+ * connection needs them and then reused by every other connection, so the
+ * cost of a broadcast does not grow with the number of receivers: <br>
+ * <ul>
+ * <li>{@link SimpleConnection} writes the same length prefixed modified UTF-8
+ * bytes that writeUTF() would have made.
+ * <li>{@link CompressedConnection} compresses once per kind of peer and
+ * keeps the frame as a SharedMessage of its own.
+ * <li>Other connections, e.g. {@link ConnectionImpl}, get the text itself,
+ * which becomes the payload of their packets; only the header of each packet
+ * is their own.
+ * </ul>
+ * The message can not be changed. It is reference counted: it starts with one
+ * reference, every holder that keeps it calls {@link #retain()} and later
+ * {@link #release()}, and when the last reference is released the encoded
+ * forms are let go and the message can not be sent any more.
+ */
+public final class SharedMessage {
+
+    private final String text;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /** writeUTF() form, made on first use. */
+    private volatile byte[] utf;
+    /** Derived frames, e.g. compressed, and what they were derived for. */
+    private String[] frameKeys = new String[0];
+    private SharedMessage[] frames = new SharedMessage[0];
+
+    /**
+     * @param text
+     *            the message, not null.
+     */
+    public SharedMessage(String text) {
+        if (text == null) throw new IllegalArgumentException("Message can not be null.");
+        this.text = text;
+    }
+
+    /** @return the message. */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Add a reference.
+     *
+     * @return this message.
+     * @throws IllegalStateException
+     *             if the message has already been released.
+     */
+    public SharedMessage retain() {
+        int n;
+        do {
+            n = references.get();
+            if (n <= 0) throw new IllegalStateException("Message already released.");
+        } while (!references.compareAndSet(n, n + 1));
+        return this;
+    }
+
+    /**
+     * Drop a reference.
+     *
+     * @return true if that was the last one and the message was freed.
+     */
+    public boolean release() {
+        int n = references.decrementAndGet();
+        if (n > 0) return false;
+        if (n < 0) throw new IllegalStateException("Message released too often.");
+        SharedMessage[] derived;
+        synchronized (this) {
+            utf = null;
+            derived = frames;
+            frameKeys = new String[0];
+            frames = new SharedMessage[0];
+        }
+        for (int i = 0; i < derived.length; i++) {
+            derived[i].release();
+        }
+        return true;
+    }
+
+    /**
+     * Send the message on a connection, reusing the encoded form if the
+     * connection is a {@link SharedMessageSender}.
+     *
+     * @param connection
+     *            the connection.
+     * @throws IOException
+     *             as from {@link Connection#send(String)}.
+     */
+    public void sendTo(Connection connection) throws IOException {
+        checkLive();
+        if (connection instanceof SharedMessageSender) {
+            ((SharedMessageSender)connection).send(this);
+        }
+        else {
+            connection.send(text);
+        }
+    }
+
+    /**
+     * @return the message as DataOutputStream.writeUTF() writes it, length
+     *         first. Not to be modified.
+     * @throws UTFDataFormatException
+     *             if the message is too long for writeUTF().
+     */
+    byte[] utf() throws UTFDataFormatException {
+        byte[] bytes = utf;
+        if (bytes != null) return bytes;
+        synchronized (this) {
+            checkLive();
+            if (utf == null) utf = encodeUtf(text);
+            return utf;
+        }
+    }
+
+    /**
+     * @param key
+     *            what the frame was derived for.
+     * @return the frame, or null if it has not been made.
+     */
+    synchronized SharedMessage frame(String key) {
+        for (int i = 0; i < frameKeys.length; i++) {
+            if (frameKeys[i].equals(key)) return frames[i];
+        }
+        return null;
+    }
+
+    /**
+     * Keep a frame derived from this message. The frame is released with the
+     * message.
+     *
+     * @return the frame kept for the key, which is an earlier one if another
+     *         thread got there first.
+     */
+    synchronized SharedMessage addFrame(String key, SharedMessage frame) {
+        checkLive();
+        SharedMessage existing = frame(key);
+        if (existing != null) {
+            frame.release();
+            return existing;
+        }
+        String[] keys = new String[frameKeys.length + 1];
+        SharedMessage[] values = new SharedMessage[frames.length + 1];
+        System.arraycopy(frameKeys, 0, keys, 0, frameKeys.length);
+        System.arraycopy(frames, 0, values, 0, frames.length);
+        keys[frameKeys.length] = key;
+        values[frames.length] = frame;
+        frameKeys = keys;
+        frames = values;
+        return frame;
+    }
+
+    private void checkLive() {
+        if (references.get() <= 0) throw new IllegalStateException("Message already released.");
+    }
+
+    /** Same bytes as DataOutputStream.writeUTF(). */
+    private static byte[] encodeUtf(String s) throws UTFDataFormatException {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) length++;
+            else if (c <= 0x07ff) length += 2;
+            else length += 3;
+        }
+        if (length > 65535) throw new UTFDataFormatException("Encoded message too long: "
+                + length + " bytes");
+        byte[] bytes = new byte[length + 2];
+        int p = 0;
+        bytes[p++] = (byte)(length >>> 8);
+        bytes[p++] = (byte)length;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                bytes[p++] = (byte)c;
+            }
+            else if (c <= 0x07ff) {
+                bytes[p++] = (byte)(0xc0 | c >> 6 & 0x1f);
+                bytes[p++] = (byte)(0x80 | c & 0x3f);
+            }
+            else {
+                bytes[p++] = (byte)(0xe0 | c >> 12 & 0x0f);
+                bytes[p++] = (byte)(0x80 | c >> 6 & 0x3f);
+                bytes[p++] = (byte)(0x80 | c & 0x3f);
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,24 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.ConnectException;
+
+/**
+ * A {@link Connection} that can send a {@link SharedMessage} without encoding
+ * it again for every receiver. Use {@link SharedMessage#sendTo(Connection)},
+ * which falls back to {@link Connection#send(String)} for other connections.
+ */
+public interface SharedMessageSender {
+
+    /**
+     * Send a shared message, same as sending its text.
+     *
+     * @param msg
+     *            the message; not released by this method.
+     * @throws ConnectException
+     *             if no remote instance is connected
+     * @throws IOException
+     *             if an I/O error occurs when sending
+     */
+    public void send(SharedMessage msg) throws ConnectException, IOException;
+}
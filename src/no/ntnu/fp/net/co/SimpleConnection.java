@@ -9,6 +9,7 @@ package no.ntnu.fp.net.co;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
@@ -22,7 +23,7 @@ import no.ntnu.fp.net.co.Connection;
  * @author sebjorns
  *
  */
-public class SimpleConnection implements Connection {
+public class SimpleConnection implements Connection, SharedMessageSender {
 
   private Socket mySocket;
   private DataOutputStream os;
@@ -30,6 +31,9 @@ public class SimpleConnection implements Connection {
   private boolean stop = true;
   private int myPort;
 
+  /** Milliseconds between looks for an interrupt while accepting. */
+  private static final int ACCEPT_POLL = 500;
+
   public SimpleConnection(int myPort) {
     this.myPort = myPort;
   }
@@ -43,7 +47,7 @@ public class SimpleConnection implements Connection {
         
     stop = false;
         
-    System.out.println("Connection established!");
+    CoLog.info("SimpleConnection", "Connection established!");
   }
 
   /* (non-Javadoc)
@@ -52,7 +56,8 @@ public class SimpleConnection implements Connection {
   public void connect(InetAddress remoteAddress, int remotePort)
     throws IOException, SocketTimeoutException {
 		
-    System.out.println("Trying to connect to: "+remoteAddress.getHostAddress()+" : "+remotePort);
+    CoLog.debug("SimpleConnection", "Trying to connect to: {} : {}", remoteAddress.getHostAddress(),
+                remotePort);
     mySocket = new Socket(remoteAddress,remotePort);
 		
     os = new DataOutputStream(mySocket.getOutputStream());
@@ -60,7 +65,7 @@ public class SimpleConnection implements Connection {
         
     stop = false;
         
-    System.out.println("Connection established!");
+    CoLog.info("SimpleConnection", "Connection established!");
   }
 
   /* (non-Javadoc)
@@ -71,12 +76,27 @@ public class SimpleConnection implements Connection {
 		
     ServerSocket myServerSocket = new ServerSocket(myPort);
 		
-    System.out.println("Serversocket lytter p: " +myServerSocket.getLocalPort() );
-    mySocket = myServerSocket.accept();
-    System.out.println("Fikk en oppkobling p: " +myServerSocket.getLocalPort() );
-	    
-    //skal denne lukkes med en gang? hvis ikke - nr?
-    myServerSocket.close();
+    CoLog.debug("SimpleConnection", "Serversocket lytter p: {}", myServerSocket.getLocalPort());
+    try {
+      // Wake up now and then to see if the thread was interrupted.
+      myServerSocket.setSoTimeout(ACCEPT_POLL);
+      Socket socket = null;
+      while (socket == null) {
+        try {
+          socket = myServerSocket.accept();
+        }
+        catch (SocketTimeoutException e) {
+          if (Thread.interrupted())
+            throw new InterruptedIOException("accept() interrupted");
+        }
+      }
+      mySocket = socket;
+    }
+    finally {
+      //skal denne lukkes med en gang? hvis ikke - nr?
+      myServerSocket.close();
+    }
+    CoLog.info("SimpleConnection", "Fikk en oppkobling p: {}", myServerSocket.getLocalPort());
 
     return new SimpleConnection(mySocket, myPort);
 
@@ -90,13 +110,23 @@ public class SimpleConnection implements Connection {
 
   }
 
+  /**
+   * Write the bytes the message was encoded to once, instead of encoding it
+   * again for this connection.
+   *
+   * @see SharedMessageSender#send(SharedMessage)
+   */
+  public void send(SharedMessage msg) throws ConnectException, IOException {
+    os.write(msg.utf());
+  }
+
   /* (non-Javadoc)
    * @see no.ntnu.fp.net.co.Connection#receive()
    */
   public String receive() throws ConnectException, IOException {
     while (!stop) {
       String s  = is.readUTF();
-      System.out.println("Received the text: "+s);
+      CoLog.trace("SimpleConnection", "Received the text: {}", s);
       return s;
     }
     throw new IOException("Can't receive. The connection is not established!");
@@ -118,7 +148,7 @@ public class SimpleConnection implements Connection {
       mySocket.close();   
     } 
     catch (UnknownHostException e) {
-      System.err.println("Trying to connect to unknown host: " + e);
+      CoLog.warn("SimpleConnection", "Trying to connect to unknown host: {}", e);
     } 
   }
 
@@ -0,0 +1,445 @@
+package no.ntnu.fp.net.co;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Runs many lightweight logical channels over one established
+ * {@link Connection}. <br>
+ * <br>
+ * Only the underlying connection does a handshake. A channel is opened by
+ * sending its first message in an {@link #OPEN} frame instead of a
+ * {@link #DATA} frame, so opening a channel costs no round trips. A frame for
+ * a channel id that was never opened, or was closed and forgotten, is
+ * dropped. Each channel has its own sequence numbers and
+ * its own credit based flow control: a sender may have at most
+ * {@link #WINDOW} unconsumed messages outstanding on a channel, and the
+ * receiver hands out new credit as the application consumes messages. Because
+ * the receive queue of a channel can never grow beyond its window, the demux
+ * thread never blocks on a slow channel, and one stalled channel does not
+ * stop the others. <br>
+ * <br>
+ * Every frame is a String starting with a header:
+ * <ol>
+ * <li>Frame type, see {@link #OPEN}, {@link #DATA}, {@link #CREDIT} and
+ * {@link #FIN}.
+ * <li>Channel id.
+ * <li>Sequence number (OPEN and DATA) or number of credits granted (CREDIT).
+ * </ol>
+ * The numbers are written 14 bits per char, least significant first, with
+ * bit 14 set on every char but the last. The header chars are then all
+ * below the surrogate range, so a frame survives any String transport. The rest of an OPEN or DATA frame is the application message.
+ * <br>
+ * <br>
+ * The side that called connect() should create its multiplexer with
+ * initiator set to true, the accepting side with false. The initiator
+ * allocates odd channel ids, the acceptor even ones, so both sides can open
+ * channels without coordination.
+ */
+public class StreamMultiplexer {
+
+    /** Frame carrying the first application message of a new channel. */
+    private static final char OPEN = 'O';
+    /** Frame carrying an application message. */
+    private static final char DATA = 'D';
+    /** Frame granting the peer more credit on a channel. */
+    private static final char CREDIT = 'C';
+    /** Frame telling the peer that a channel will not send any more data. */
+    private static final char FIN = 'F';
+
+    /**
+     * Number of messages a sender may have outstanding on one channel before
+     * it has to wait for credit. Both sides use the same value, so no
+     * negotiation is needed when a channel is opened.
+     */
+    public static final int WINDOW = 16;
+
+    /** Largest channel id; allocating ids two at a time must not overflow. */
+    private static final int MAX_CHANNEL_ID = Integer.MAX_VALUE - 2;
+
+    private static final int DATA_BITS = 14;
+    private static final int DATA_MASK = (1 << DATA_BITS) - 1;
+    private static final int MORE = 1 << DATA_BITS;
+    /** Sequence numbers wrap to stay within one header char. */
+    private static final int SEQ_MASK = DATA_MASK;
+
+    private final Connection connection;
+    private final Object sendLock = new Object();
+    private final Map<Integer, Channel> channels = new HashMap<Integer, Channel>();
+    private final LinkedList<Channel> acceptQueue = new LinkedList<Channel>();
+    private final DemuxThread demuxThread;
+
+    private int nextChannelId;
+    /** Set when the underlying connection is gone. */
+    private volatile IOException failure;
+
+    /**
+     * @param connection
+     *            an established connection to run channels over. The
+     *            multiplexer takes over all receiving on it.
+     * @param initiator
+     *            true on the side that connected, false on the side that
+     *            accepted.
+     */
+    public StreamMultiplexer(Connection connection, boolean initiator) {
+        this.connection = connection;
+        nextChannelId = initiator ? 1 : 2;
+        demuxThread = new DemuxThread();
+        demuxThread.setDaemon(true);
+        demuxThread.start();
+    }
+
+    /**
+     * Open a new channel. The remote side sees the channel when the first
+     * message is sent on it; a channel closed before that is never seen.
+     *
+     * @return the new channel.
+     * @throws IOException
+     *             if the underlying connection is lost or all channel ids are
+     *             used.
+     */
+    public synchronized Connection openChannel() throws IOException {
+        checkFailure();
+        if (nextChannelId > MAX_CHANNEL_ID)
+            throw new IOException("No more channel ids available.");
+        Channel channel = new Channel(nextChannelId, false);
+        nextChannelId += 2;
+        channels.put(channel.id, channel);
+        return channel;
+    }
+
+    /**
+     * Wait for the remote side to open a channel.
+     *
+     * @return the channel opened by the remote side.
+     * @throws IOException
+     *             if the underlying connection is lost while waiting.
+     */
+    public synchronized Connection acceptChannel() throws IOException {
+        while (acceptQueue.isEmpty()) {
+            checkFailure();
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for a channel.");
+            }
+        }
+        return acceptQueue.removeFirst();
+    }
+
+    /**
+     * Close all channels and the underlying connection.
+     *
+     * @throws IOException
+     *             if thrown by the underlying connection.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            for (Channel channel : channels.values()) {
+                channel.closeLocally();
+            }
+            channels.clear();
+        }
+        demuxThread.running = false;
+        connection.close();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) throw failure;
+    }
+
+    /** Write one frame on the underlying connection. */
+    private void writeFrame(char type, int channelId, int value, String payload) throws IOException {
+        StringBuilder frame = new StringBuilder(7 + (payload == null ? 0 : payload.length()));
+        frame.append(type);
+        appendNumber(frame, channelId);
+        appendNumber(frame, value);
+        if (payload != null) frame.append(payload);
+        synchronized (sendLock) {
+            connection.send(frame.toString());
+        }
+    }
+
+    private static void appendNumber(StringBuilder sb, int value) {
+        while ((value & ~DATA_MASK) != 0) {
+            sb.append((char)(value & DATA_MASK | MORE));
+            value >>>= DATA_BITS;
+        }
+        sb.append((char)value);
+    }
+
+    /**
+     * Read a number written by {@link #appendNumber(StringBuilder, int)}.
+     *
+     * @param at
+     *            holds the position to read at, and is set to the position
+     *            after the number.
+     * @return the number, or -1 if the frame ends inside it.
+     */
+    private static int readNumber(String frame, int[] at) {
+        int value = 0;
+        for (int shift = 0; shift < 32 && at[0] < frame.length(); shift += DATA_BITS) {
+            char c = frame.charAt(at[0]++);
+            value |= (c & DATA_MASK) << shift;
+            if ((c & MORE) == 0) return value;
+        }
+        return -1;
+    }
+
+    /** Route an incoming frame to its channel. */
+    private void dispatch(String frame) {
+        if (frame == null || frame.length() < 3) {
+            CoLog.warn("StreamMultiplexer", "Dropping short frame");
+            return;
+        }
+        char type = frame.charAt(0);
+        int[] at = { 1 };
+        int channelId = readNumber(frame, at);
+        int value = readNumber(frame, at);
+        if (channelId < 0 || value < 0) {
+            CoLog.warn("StreamMultiplexer", "Dropping frame with a truncated header");
+            return;
+        }
+
+        Channel channel;
+        synchronized (this) {
+            channel = channels.get(channelId);
+            if (channel == null) {
+                if (type != OPEN) {
+                    // Never opened, or closed and forgotten: must not become a new channel.
+                    CoLog.debug("StreamMultiplexer", "Dropping frame for unknown channel {}", channelId);
+                    return;
+                }
+                channel = new Channel(channelId, true);
+                channels.put(channelId, channel);
+                acceptQueue.addLast(channel);
+                notifyAll();
+            }
+        }
+        switch (type) {
+        case OPEN:
+        case DATA:
+            channel.deliver(value, frame.substring(at[0]));
+            break;
+        case CREDIT:
+            channel.grant(value);
+            break;
+        case FIN:
+            channel.remoteClosed();
+            break;
+        default:
+            CoLog.warn("StreamMultiplexer", "Dropping frame of unknown type {}", type);
+        }
+    }
+
+    /** Mark the multiplexer as failed and wake everybody waiting on it. */
+    private void fail(IOException cause) {
+        synchronized (this) {
+            failure = cause;
+            notifyAll();
+            for (Channel channel : channels.values()) {
+                channel.wake();
+            }
+        }
+    }
+
+    /** Removes a channel that is closed in both directions. */
+    private synchronized void forget(Channel channel) {
+        channels.remove(channel.id);
+    }
+
+    /** Reads frames from the underlying connection until it closes. */
+    private class DemuxThread extends Thread {
+        private volatile boolean running = true;
+
+        public DemuxThread() {
+            super("StreamMultiplexer-demux");
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    dispatch(connection.receive());
+                }
+            }
+            catch (EOFException e) {
+                fail(new EOFException("Underlying connection closed."));
+            }
+            catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * One logical channel. Implements {@link Connection} so it can be used
+     * wherever a regular connection is expected, e.g. with
+     * {@link ReceiveMessageWorker}.
+     */
+    private class Channel implements Connection {
+
+        private final int id;
+        private final LinkedList<String> received = new LinkedList<String>();
+        /** Out of order messages, keyed by sequence number. */
+        private final Map<Integer, String> reorder = new HashMap<Integer, String>();
+
+        private int sendCredit = WINDOW;
+        private int nextSendSeq = 0;
+        private int nextReceiveSeq = 0;
+        /** Set once the peer knows the channel, i.e. an OPEN frame was sent or received. */
+        private boolean opened;
+        /** Set while the OPEN frame is being written; other sends wait for it. */
+        private boolean opening = false;
+        /** Messages consumed by the application since credit was last granted. */
+        private int consumed = 0;
+        private boolean localClosed = false;
+        private boolean remoteClosed = false;
+
+        public Channel(int id, boolean opened) {
+            this.id = id;
+            this.opened = opened;
+        }
+
+        public void connect(InetAddress remoteAddress, int remotePort) throws IOException,
+                SocketTimeoutException {
+            throw new IOException("Channels are opened with StreamMultiplexer.openChannel().");
+        }
+
+        public Connection accept() throws IOException, SocketTimeoutException {
+            return acceptChannel();
+        }
+
+        public void send(String msg) throws ConnectException, IOException {
+            if (msg == null) throw new IllegalArgumentException("Message can not be null.");
+            int seq;
+            char type;
+            synchronized (this) {
+                while ((sendCredit == 0 || opening) && !localClosed && !remoteClosed
+                        && failure == null) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        throw new IOException("Interrupted while waiting for credit.");
+                    }
+                }
+                if (localClosed) throw new ConnectException("Channel " + id + " is closed.");
+                // The peer drops DATA for a channel it has closed.
+                if (remoteClosed) throw new EOFException("Channel " + id + " closed by peer.");
+                checkFailure();
+                sendCredit--;
+                seq = nextSendSeq;
+                nextSendSeq = (nextSendSeq + 1) & SEQ_MASK;
+                type = opened ? DATA : OPEN;
+                opened = true;
+                opening = type == OPEN;
+            }
+            if (type == DATA) {
+                writeFrame(DATA, id, seq, msg);
+                return;
+            }
+            // Later frames must not overtake the OPEN, or the peer drops them.
+            try {
+                writeFrame(OPEN, id, seq, msg);
+            }
+            finally {
+                synchronized (this) {
+                    opening = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        public String receive() throws ConnectException, IOException {
+            String message;
+            int grant = 0;
+            synchronized (this) {
+                while (received.isEmpty()) {
+                    if (remoteClosed) throw new EOFException("Channel " + id + " closed by peer.");
+                    if (localClosed) throw new ConnectException("Channel " + id + " is closed.");
+                    checkFailure();
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        throw new IOException("Interrupted while receiving.");
+                    }
+                }
+                message = received.removeFirst();
+                if (++consumed >= WINDOW / 2 && !remoteClosed) {
+                    grant = consumed;
+                    consumed = 0;
+                }
+            }
+            if (grant > 0) writeFrame(CREDIT, id, grant, null);
+            return message;
+        }
+
+        public void close() throws IOException {
+            boolean sendFin;
+            boolean done;
+            synchronized (this) {
+                sendFin = !localClosed && opened;
+                localClosed = true;
+                // A channel the peer never saw gets no FIN from it either.
+                done = remoteClosed || !opened;
+                notifyAll();
+            }
+            if (sendFin && failure == null) writeFrame(FIN, id, 0, null);
+            if (done) forget(this);
+        }
+
+        /** Called by the demux thread for each DATA frame. */
+        private synchronized void deliver(int seq, String message) {
+            if (received.size() + reorder.size() >= WINDOW) {
+                CoLog.warn("StreamMultiplexer", "Channel {}: peer exceeded its window, dropping", id);
+                return;
+            }
+            if (seq != nextReceiveSeq) {
+                reorder.put(seq, message);
+                return;
+            }
+            received.addLast(message);
+            nextReceiveSeq = (nextReceiveSeq + 1) & SEQ_MASK;
+            String next;
+            while ((next = reorder.remove(nextReceiveSeq)) != null) {
+                received.addLast(next);
+                nextReceiveSeq = (nextReceiveSeq + 1) & SEQ_MASK;
+            }
+            notifyAll();
+        }
+
+        /** Called by the demux thread for each CREDIT frame. */
+        private synchronized void grant(int credits) {
+            sendCredit += credits;
+            notifyAll();
+        }
+
+        /** Called by the demux thread when the peer closes the channel. */
+        private void remoteClosed() {
+            boolean done;
+            synchronized (this) {
+                remoteClosed = true;
+                done = localClosed;
+                notifyAll();
+            }
+            if (done) forget(this);
+        }
+
+        private synchronized void closeLocally() {
+            localClosed = true;
+            notifyAll();
+        }
+
+        private synchronized void wake() {
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * Reads one or more {@link PacketTrace} files, typically one from the client
+ * and one from the server, merges them by time and reports per connection:
+ * <ul>
+ * <li>data packets sent and retransmitted, per direction,
+ * <li>data packets delivered, duplicates and checksum errors seen by the
+ * receiver,
+ * <li>round trip time from a data packet to its ack, only for packets that
+ * were sent once (Karn's rule),
+ * <li>goodput, i.e. payload acknowledged per second.
+ * </ul>
+ * A connection is the pair of endpoints, so the SYN to the listening port and
+ * the rest of the connection on the port accept() picked show up as two
+ * connections. <br>
+ * <br>
+ * Usage: TraceAnalyzer [-timeline] trace...
+ */
+public class TraceAnalyzer {
+
+    /** Flags as stored in a record, see {@link PacketTrace#flagCode(Flag)}. */
+    private static final int DATA = PacketTrace.flagCode(Flag.NONE);
+    private static final int SYN_ACK = PacketTrace.flagCode(Flag.SYN_ACK);
+    private static final int ACK = PacketTrace.flagCode(Flag.ACK);
+
+    /** One record of a trace. */
+    static class Record {
+        int trace;
+        long micros;
+        int direction, flag, checksum;
+        int srcAddr, dstAddr, srcPort, dstPort;
+        int seq, ack, size;
+
+        long src() {
+            return (srcAddr & 0xffffffffL) << 16 | srcPort;
+        }
+
+        long dst() {
+            return (dstAddr & 0xffffffffL) << 16 | dstPort;
+        }
+    }
+
+    /** Counters for one direction of a connection. */
+    static class Direction {
+        final long from, to;
+        int sent, retransmitted, delivered, duplicates, badChecksums;
+        long ackedBytes;
+        long firstSend = -1, lastAck = -1;
+        final List<Long> rtts = new ArrayList<Long>();
+        /** Per sending trace: seq -> { first send time, times sent, size }. */
+        final Map<Integer, long[]> outstanding = new HashMap<Integer, long[]>();
+        final Map<Integer, Boolean> seen = new HashMap<Integer, Boolean>();
+
+        Direction(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final List<Record> records = new ArrayList<Record>();
+    private final Map<String, Direction> directions = new LinkedHashMap<String, Direction>();
+    private int traceCount = 0;
+
+    /**
+     * Read a trace file.
+     *
+     * @param file
+     *            the file.
+     * @throws IOException
+     *             if it can not be read or is not a trace.
+     */
+    public void read(File file) throws IOException {
+        int trace = traceCount++;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (b.remaining() < PacketTrace.HEADER_SIZE || b.getInt() != PacketTrace.MAGIC)
+                throw new IOException(file + " is not a packet trace");
+            int version = b.getShort();
+            int recordSize = b.getShort();
+            if (version != PacketTrace.VERSION || recordSize < PacketTrace.RECORD_SIZE)
+                throw new IOException(file + ": unsupported trace version " + version);
+            b.getLong(); // Start time, the records carry their own.
+            while (b.remaining() >= recordSize) {
+                int start = b.position();
+                Record r = new Record();
+                r.trace = trace;
+                r.micros = b.getLong();
+                if (r.micros == 0) break; // End of the written part.
+                r.direction = b.get();
+                r.flag = b.get();
+                r.checksum = b.get();
+                b.get();
+                r.srcAddr = b.getInt();
+                r.dstAddr = b.getInt();
+                r.srcPort = b.getChar();
+                r.dstPort = b.getChar();
+                r.seq = b.getInt();
+                r.ack = b.getInt();
+                r.size = b.getInt();
+                b.position(start + recordSize);
+                records.add(r);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /** Merge the traces read by time and compute the statistics. */
+    public void analyze() {
+        Collections.sort(records, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return a.micros < b.micros ? -1 : a.micros > b.micros ? 1 : 0;
+            }
+        });
+        for (Record r : records) {
+            if (r.flag == DATA) data(r);
+            else if (r.direction == PacketTrace.RECEIVE && (r.flag == ACK || r.flag == SYN_ACK)) ack(r);
+        }
+    }
+
+    private void data(Record r) {
+        Direction d = direction(r.src(), r.dst());
+        if (r.direction == PacketTrace.SEND) {
+            Integer key = Integer.valueOf(r.trace << 24 ^ r.seq);
+            long[] state = d.outstanding.get(key);
+            if (state == null) {
+                d.outstanding.put(key, new long[] { r.micros, 1, r.size });
+                d.sent++;
+            }
+            else {
+                state[1]++;
+                d.sent++;
+                d.retransmitted++;
+            }
+            if (d.firstSend < 0) d.firstSend = r.micros;
+        }
+        else if (r.checksum == PacketTrace.CHECKSUM_BAD) {
+            d.badChecksums++;
+        }
+        else if (d.seen.put(Integer.valueOf(r.seq), Boolean.TRUE) != null) {
+            d.duplicates++;
+        }
+        else {
+            d.delivered++;
+        }
+    }
+
+    private void ack(Record r) {
+        if (r.checksum == PacketTrace.CHECKSUM_BAD) return;
+        // The ack travels the other way: it acknowledges data sent to its source.
+        Direction d = direction(r.dst(), r.src());
+        long[] state = d.outstanding.get(Integer.valueOf(r.trace << 24 ^ r.ack));
+        if (state == null || state[2] < 0) return;
+        if (state[1] == 1) d.rtts.add(Long.valueOf(r.micros - state[0]));
+        d.ackedBytes += state[2];
+        state[2] = -1; // Count each packet once.
+        d.lastAck = r.micros;
+    }
+
+    private Direction direction(long from, long to) {
+        String key = from + ">" + to;
+        Direction d = directions.get(key);
+        if (d == null) {
+            d = new Direction(from, to);
+            directions.put(key, d);
+        }
+        return d;
+    }
+
+    /** Print the merged records, one line each. */
+    public void printTimeline(PrintStream out) {
+        long start = records.isEmpty() ? 0 : records.get(0).micros;
+        for (Record r : records) {
+            out.printf(Locale.ROOT, "%12.3f ms  trace %d  %s  %-21s -> %-21s  %-7s seq %-6d ack %-6d "
+                    + "%4d chars%s%n", (r.micros - start) / 1000.0, r.trace,
+                    r.direction == PacketTrace.SEND ? "send" : "recv", endpoint(r.src()),
+                    endpoint(r.dst()), PacketTrace.flagName(r.flag), r.seq, r.ack, r.size,
+                    r.checksum == PacketTrace.CHECKSUM_BAD ? "  BAD CHECKSUM" : "");
+        }
+    }
+
+    /** Print the statistics per connection and direction. */
+    public void printSummary(PrintStream out) {
+        for (Direction d : directions.values()) {
+            if (d.sent == 0 && d.delivered == 0 && d.badChecksums == 0) continue;
+            out.println(endpoint(d.from) + " -> " + endpoint(d.to));
+            out.printf(Locale.ROOT, "  sent %d, retransmitted %d (%.1f%%)%n", d.sent,
+                    d.retransmitted, d.sent == 0 ? 0.0 : 100.0 * d.retransmitted / d.sent);
+            out.printf("  delivered %d, duplicates %d, checksum errors %d%n", d.delivered,
+                    d.duplicates, d.badChecksums);
+            if (!d.rtts.isEmpty()) {
+                long[] rtt = new long[d.rtts.size()];
+                long sum = 0;
+                for (int i = 0; i < rtt.length; i++) {
+                    rtt[i] = d.rtts.get(i).longValue();
+                    sum += rtt[i];
+                }
+                Arrays.sort(rtt);
+                out.printf(Locale.ROOT,
+                        "  rtt ms: n %d, min %.3f, mean %.3f, p50 %.3f, p90 %.3f, max %.3f%n",
+                        rtt.length, rtt[0] / 1000.0, sum / 1000.0 / rtt.length,
+                        percentile(rtt, 0.5) / 1000.0, percentile(rtt, 0.9) / 1000.0,
+                        rtt[rtt.length - 1] / 1000.0);
+            }
+            if (d.lastAck > d.firstSend && d.firstSend >= 0) {
+                double seconds = (d.lastAck - d.firstSend) / 1e6;
+                out.printf(Locale.ROOT, "  goodput %.1f chars/s (%d chars in %.3f s)%n",
+                        d.ackedBytes / seconds, d.ackedBytes, seconds);
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int i = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+
+    private static String endpoint(long key) {
+        return Endpoints.toString(key);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean timeline = false;
+        TraceAnalyzer analyzer = new TraceAnalyzer();
+        int files = 0;
+        for (String arg : args) {
+            if (arg.equals("-timeline")) {
+                timeline = true;
+            }
+            else {
+                analyzer.read(new File(arg));
+                files++;
+            }
+        }
+        if (files == 0) {
+            System.err.println("Usage: TraceAnalyzer [-timeline] trace...");
+            System.exit(1);
+        }
+        analyzer.analyze();
+        if (timeline) analyzer.printTimeline(System.out);
+        analyzer.printSummary(System.out);
+    }
+}
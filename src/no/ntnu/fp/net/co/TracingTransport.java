@@ -0,0 +1,57 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * A {@link DatagramTransport} that writes every packet sent or received
+ * through another transport to a {@link PacketTrace}. Received packets are
+ * recorded with the result of their checksum check; sent packets are recorded
+ * before the inner transport sends them, so also when sending fails.
+ */
+public class TracingTransport implements DatagramTransport {
+
+    private final DatagramTransport transport;
+    private final PacketTrace trace;
+
+    /**
+     * @param transport
+     *            the transport to send and receive through.
+     * @param trace
+     *            the trace to write to.
+     */
+    public TracingTransport(DatagramTransport transport, PacketTrace trace) {
+        this.transport = transport;
+        this.trace = trace;
+    }
+
+    public void send(KtnDatagram packet) throws ClException, IOException {
+        trace.record(PacketTrace.SEND, packet, PacketTrace.CHECKSUM_UNCHECKED);
+        transport.send(packet);
+    }
+
+    public KtnDatagram receive(int port) throws IOException {
+        KtnDatagram packet = transport.receive(port);
+        if (packet != null) {
+            boolean ok = packet.calculateChecksum() == packet.getChecksum();
+            trace.record(PacketTrace.RECEIVE, packet, ok ? PacketTrace.CHECKSUM_OK
+                    : PacketTrace.CHECKSUM_BAD);
+        }
+        return packet;
+    }
+
+    public void cancelReceive(int port) throws IOException {
+        transport.cancelReceive(port);
+    }
+
+    public void release(int port) throws IOException {
+        transport.release(port);
+    }
+
+    /** @return the trace written to. */
+    public PacketTrace getTrace() {
+        return trace;
+    }
+}
@@ -0,0 +1,253 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * {@link DatagramTransport} sending {@link KtnDatagram}s as plain UDP
+ * datagrams through {@link DatagramChannel}s. Unlike A2 it adds no errors of
+ * its own. <br>
+ * <br>
+ * Each local port gets one non-blocking channel, bound the first time the
+ * port is sent from or received on and kept open until {@link #release(int)}
+ * closes it. Sending from the
+ * port's own channel means replies are buffered by the socket even if they
+ * arrive before anybody calls receive(). A receive waits on a selector, which
+ * cancelReceive() wakes up without closing the channel. Encoding and decoding
+ * use direct buffers from a small pool, so steady state traffic does not
+ * allocate buffers. <br>
+ * <br>
+ * Wire format, all big endian: magic (short), flag ordinal (byte), sequence
+ * number (int), ack number (int), checksum (long), source port (int),
+ * destination port (int), source address, destination address and payload.
+ * The strings are written as a signed short length followed by UTF-8 bytes,
+ * where length -1 means null.
+ */
+public class UdpTransport implements DatagramTransport {
+
+    /** Largest datagram UDP can carry. */
+    private static final int MAX_DATAGRAM = 65507;
+    /** Number of idle buffers kept in the pool. */
+    private static final int POOL_SIZE = 16;
+    private static final short MAGIC = (short)0x4b54;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Flag[] FLAGS = Flag.values();
+
+    private final ConcurrentHashMap<Integer, Port> ports = new ConcurrentHashMap<Integer, Port>();
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public void send(KtnDatagram packet) throws IOException {
+        // A2 fills in the checksum when sending; do the same.
+        packet.setChecksum(packet.calculateChecksum());
+        Port port = portFor(packet.getSrc_port());
+        ByteBuffer buffer = acquire();
+        try {
+            try {
+                encode(packet, buffer);
+            }
+            catch (BufferOverflowException e) {
+                throw new IOException("Datagram too large for UDP.");
+            }
+            buffer.flip();
+            port.channel.send(buffer,
+                    new InetSocketAddress(packet.getDest_addr(), packet.getDest_port()));
+        }
+        finally {
+            recycle(buffer);
+        }
+    }
+
+    public KtnDatagram receive(int portNo) throws IOException {
+        Port port = portFor(portNo);
+        ByteBuffer buffer = acquire();
+        port.receivers.incrementAndGet();
+        try {
+            while (true) {
+                if (port.closed) return null;
+                buffer.clear();
+                if (port.channel.receive(buffer) != null) {
+                    buffer.flip();
+                    try {
+                        return decode(buffer);
+                    }
+                    catch (BufferUnderflowException e) {
+                        CoLog.warn("UdpTransport", "Dropping truncated datagram on port {}", portNo);
+                    }
+                    catch (IllegalArgumentException e) {
+                        CoLog.warn("UdpTransport", "Dropping foreign datagram on port {}", portNo);
+                    }
+                    continue;
+                }
+                if (port.cancelled) {
+                    port.cancelled = false;
+                    return null;
+                }
+                port.selector.select();
+                port.selector.selectedKeys().clear();
+            }
+        }
+        catch (ClosedChannelException e) {
+            if (port.closed) return null;
+            throw e;
+        }
+        catch (ClosedSelectorException e) {
+            // Only release() closes the selector.
+            return null;
+        }
+        finally {
+            port.receivers.decrementAndGet();
+            recycle(buffer);
+        }
+    }
+
+    public void cancelReceive(int portNo) {
+        Port port = ports.get(portNo);
+        if (port == null || port.receivers.get() == 0) return;
+        port.cancelled = true;
+        port.selector.wakeup();
+    }
+
+    /** Close the port's channel and selector. A blocked receive returns null. */
+    public void release(int portNo) {
+        Port port;
+        synchronized (ports) {
+            port = ports.remove(portNo);
+        }
+        if (port != null) port.close();
+    }
+
+    private Port portFor(int portNo) throws IOException {
+        Port port = ports.get(portNo);
+        if (port != null) return port;
+        synchronized (ports) {
+            port = ports.get(portNo);
+            if (port == null) {
+                port = new Port(portNo);
+                ports.put(portNo, port);
+            }
+            return port;
+        }
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= POOL_SIZE) pool.offer(buffer);
+        else pooled.decrementAndGet();
+    }
+
+    private static void encode(KtnDatagram packet, ByteBuffer out) {
+        out.putShort(MAGIC);
+        out.put((byte)packet.getFlag().ordinal());
+        out.putInt(packet.getSeq_nr());
+        out.putInt(packet.getAck());
+        out.putLong(packet.getChecksum());
+        out.putInt(packet.getSrc_port());
+        out.putInt(packet.getDest_port());
+        putString(out, packet.getSrc_addr());
+        putString(out, packet.getDest_addr());
+        putString(out, (String)packet.getPayload());
+    }
+
+    private static KtnDatagram decode(ByteBuffer in) {
+        if (in.getShort() != MAGIC) throw new IllegalArgumentException("Bad magic");
+        int flag = in.get();
+        if (flag < 0 || flag >= FLAGS.length) throw new IllegalArgumentException("Bad flag");
+        KtnDatagram packet = new KtnDatagram();
+        packet.setFlag(FLAGS[flag]);
+        packet.setSeq_nr(in.getInt());
+        packet.setAck(in.getInt());
+        long checksum = in.getLong();
+        packet.setSrc_port(in.getInt());
+        packet.setDest_port(in.getInt());
+        packet.setSrc_addr(getString(in));
+        packet.setDest_addr(getString(in));
+        packet.setPayload(getString(in));
+        // Set last, so the sender's checksum is what the receiver validates.
+        packet.setChecksum(checksum);
+        return packet;
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.putShort((short)-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        if (bytes.length > Short.MAX_VALUE) throw new BufferOverflowException();
+        out.putShort((short)bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /** The channel bound to one local port, and the selector receives wait on. */
+    private static class Port {
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final AtomicInteger receivers = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile boolean closed = false;
+
+        public Port(int portNo) throws IOException {
+            channel = DatagramChannel.open();
+            try {
+                // No SO_REUSEADDR: a port already in use must fail to bind,
+                // not share its datagrams with us.
+                channel.socket().bind(new InetSocketAddress(portNo));
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        private void close() {
+            closed = true;
+            selector.wakeup();
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                CoLog.warn("UdpTransport", "Could not close channel: {}", e);
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                CoLog.warn("UdpTransport", "Could not close selector: {}", e);
+            }
+        }
+    }
+}
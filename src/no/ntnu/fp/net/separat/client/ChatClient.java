@@ -9,12 +9,21 @@ import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.CompressedConnection;
 import no.ntnu.fp.net.co.Connection;
 import no.ntnu.fp.net.co.ConnectionImpl;
 import no.ntnu.fp.net.co.SimpleConnection;
+import no.ntnu.fp.net.separat.protocol.ChatCodec;
+import no.ntnu.fp.net.separat.protocol.ChatHandler;
 
 /**
  * @author Geir Vevle
@@ -28,7 +37,7 @@ public class ChatClient {
 
     private String username = "default";
 
-    private Gui gui;
+    private ChatView gui;
 
     private int port_to_server = 4444;
 
@@ -42,20 +51,144 @@ public class ChatClient {
 
     private static boolean SIMPLE_CONNECTION = true;
 
+    /** Most messages waiting to be sent; more are refused. */
+    public static int SEND_QUEUE_LIMIT = Integer.getInteger("ktn.client.sendQueue", 256)
+            .intValue();
+
+    /** Milliseconds disconnect() waits for the queued messages to be sent. */
+    private static final long DISCONNECT_TIMEOUT = 5000;
+
+    /**
+     * Told what became of each line given to sendMessage(): exactly one of
+     * the methods is called per line. Called on the sender thread, or on the
+     * caller's thread if the line is refused, so it must not block.
+     */
+    public interface SendListener {
+        /** The line was acknowledged by the server. */
+        void delivered(long id, String text);
+
+        /** The line was not sent. */
+        void failed(long id, String text, IOException cause);
+    }
+
+    /** A message waiting to be sent. */
+    private static final class Outgoing {
+        final long id;
+        final String data;
+        /** What the user typed, or null for the protocol's own messages. */
+        final String text;
+
+        Outgoing(long id, String data, String text) {
+            this.id = id;
+            this.data = data;
+            this.text = text;
+        }
+    }
+
+    /** Put after the last message; the sender closes the connection. */
+    private static final Outgoing CLOSE = new Outgoing(-1, null, null);
+
+    /**
+     * Messages to send, in order. Sending waits for the acknowledgement, so
+     * it is done here by the sender thread, never by the caller.
+     */
+    private final LinkedBlockingQueue<Outgoing> outbox = new LinkedBlockingQueue<Outgoing>(
+            SEND_QUEUE_LIMIT);
+
+    private final AtomicLong lastSendId = new AtomicLong();
+
+    private volatile SendListener sendListener;
+
+    private SendThread sendThread;
+
+    /** Typed before a query to search what has been said. */
+    public static final String SEARCH_COMMAND = "/search ";
+
+    /** Typed before a room name to join the room and talk there. */
+    public static final String JOIN_COMMAND = "/join ";
+
+    /** Typed before a room name to leave the room. */
+    public static final String LEAVE_COMMAND = "/leave ";
+
+    /** The room what is typed is said in. */
+    private volatile String room = ChatCodec.LOBBY;
+
+    /** Wait at least this long before asking for the roster again. */
+    private static final long ROSTER_REQUEST_INTERVAL = 2000;
+
+    /** The logged on users; only used by the receive thread. */
+    private final Roster roster = new Roster();
+
+    private long rosterRequested = 0;
+
+    /** Handles the messages from the server. */
+    private final ChatHandler handler = new ChatHandler() {
+        public void chat(String room, String from, String text) {
+            gui.addMessage(text, room.equals(ChatCodec.LOBBY) ? from : "#" + room + " " + from);
+        }
+
+        public void notice(String text) {
+            gui.addMessage(text, "*");
+        }
+
+        public void roster(long version, long[] ids, String[] names) {
+            rosterChanged(roster.snapshot(version, ids, names));
+        }
+
+        public void joined(long version, long id, String name) {
+            rosterChanged(roster.join(version, id, name));
+        }
+
+        public void left(long version, long id) {
+            rosterChanged(roster.leave(version, id));
+        }
+
+        public void renamed(long version, long id, String name) {
+            rosterChanged(roster.rename(version, id, name));
+        }
+
+        public void searchResult(String query, long[] times, String[] from, String[] texts) {
+            gui.addMessage("Search for '" + query + "': " + times.length + " found.", "*");
+            SimpleDateFormat format = new SimpleDateFormat("dd.MM HH:mm");
+            for (int i = 0; i < times.length; i++) {
+                gui.addMessage(texts[i], format.format(new Date(times[i])) + " " + from[i]);
+            }
+        }
+    };
+
     public ChatClient(String address, int port) {
         port_to_server = port;
         addressServer= address;
         if (SIMPLE_CONNECTION) {
-            connection = new SimpleConnection(thisPort);
+            connection = new CompressedConnection(new SimpleConnection(thisPort));
         } else {
-            connection = new ConnectionImpl(thisPort);
+            connection = new CompressedConnection(new ConnectionImpl(thisPort));
         }
         //	  this.username = JOptionPane.showInputDialog(gui,"Skriv inn
         // navn:");
-        gui = new Gui("Hahahahah", this);
+        Gui window = new Gui("Hahahahah", this);
+        gui = window;
         this.login(username);
 
-        gui.setDefaultCloseOperation(Gui.EXIT_ON_CLOSE);
+        window.setDefaultCloseOperation(Gui.EXIT_ON_CLOSE);
+    }
+
+    /**
+     * A client without a window, e.g. a simulated user. Call login() to
+     * connect.
+     * 
+     * @param connection
+     *            not yet connected.
+     * @param view
+     *            shows what the client receives.
+     */
+    public ChatClient(Connection connection, String address, int port, String username,
+            ChatView view) {
+        this.connection = connection;
+        addressServer = address;
+        port_to_server = port;
+        this.username = username;
+        gui = view;
     }
 
     private class RecieveThread extends Thread {
@@ -76,19 +209,88 @@ public class ChatClient {
         }
     }
 
-    public void sendMessage(String message) {
-        send(this.username + ": " + message);
+    /** Sends the queued messages, one at a time, until CLOSE. */
+    private class SendThread extends Thread {
+        SendThread() {
+            super("ChatClient-sender");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                Outgoing out;
+                try {
+                    out = outbox.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (out == CLOSE) {
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+                try {
+                    connection.send(out.data);
+                    sent(out, null);
+                } catch (IOException e) {
+                    // Also ConnectException.
+                    sent(out, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue what the user typed: a line to say, or a command. Returns at
+     * once; the SendListener is told when the server has it.
+     *
+     * @return an id for the SendListener, or -1 if the queue is full.
+     */
+    public long sendMessage(String message) {
+        String data;
+        if (message.startsWith(SEARCH_COMMAND)) {
+            data = ChatCodec.search(message.substring(SEARCH_COMMAND.length()));
+        } else if (message.startsWith(JOIN_COMMAND)) {
+            room = roomName(message.substring(JOIN_COMMAND.length()));
+            data = ChatCodec.joinRoom(room);
+        } else if (message.startsWith(LEAVE_COMMAND)) {
+            String left = roomName(message.substring(LEAVE_COMMAND.length()));
+            data = ChatCodec.leaveRoom(left);
+            if (left.equals(room)) room = ChatCodec.LOBBY;
+        } else {
+            data = ChatCodec.chat(this.username, message, room);
+        }
+        return enqueue(data, message);
+    }
+
+    /** @return the room name typed, as the server knows it. */
+    private static String roomName(String typed) {
+        String name = typed.trim();
+        if (name.startsWith("#")) name = name.substring(1);
+        return name.toLowerCase(Locale.ENGLISH);
     }
 
-    public void login(String username) {
+    /**
+     * Connect and log on.
+     * 
+     * @return false if the connection could not be made; then login() may
+     *         be tried again.
+     */
+    public boolean login(String username) {
         String message;
         System.out.println("Logger inn " + username);
         try {
             connection.connect(InetAddress.getByName(addressServer),
                     port_to_server);
-            connection.send("Hello:" + username);
+            sendThread = new SendThread();
+            sendThread.start();
+            send(ChatCodec.hello(username));
             recieveThread = new RecieveThread();
             recieveThread.start();
+            return true;
         } catch (SocketTimeoutException e) {
             e.printStackTrace();
         } catch (UnknownHostException e) {
@@ -96,49 +298,85 @@ public class ChatClient {
         } catch (IOException e) {
             e.printStackTrace();
         }
-
+        return false;
     }
 
     private void recieve(String message) {
-        if (message.substring(0, 1).equals("[")
-                && message.substring(message.length() - 1, message.length())
-                        .equals("]")) {
-            String[] list = message.substring(1, message.length() - 1).split(
-                    ", ");
-            gui.updateUserList(list);
-        } else if (!message.substring(0, 1).equals("/")) {
-            gui.addMessage(message.substring(message.indexOf(":")), message
-                    .substring(0, message.indexOf(":")));
+        ChatCodec.decode(message, handler);
+    }
+
+    private void rosterChanged(Roster.Result result) {
+        if (result == Roster.Result.APPLIED) {
+            gui.updateUserList(roster.getNames());
+        } else if (result == Roster.Result.GAP) {
+            // Missed a change; ask for the whole list, but not for every
+            // change that arrives before it.
+            long now = System.currentTimeMillis();
+            if (now - rosterRequested > ROSTER_REQUEST_INTERVAL) {
+                rosterRequested = now;
+                send(ChatCodec.rosterRequest());
+            }
         }
     }
 
-    public void send(String data) {
-        try {
-            connection.send(data);
-        } catch (ConnectException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+    /**
+     * Queue a message of the protocol. Returns at once.
+     *
+     * @return false if the queue is full.
+     */
+    public boolean send(String data) {
+        return enqueue(data, null) >= 0;
+    }
+
+    /** @return the id of the queued message, or -1 if the queue is full. */
+    private long enqueue(String data, String text) {
+        Outgoing out = new Outgoing(lastSendId.incrementAndGet(), data, text);
+        if (outbox.offer(out)) return out.id;
+        sent(out, new IOException("Too many messages waiting to be sent"));
+        return -1;
+    }
+
+    /** Tell the listener what became of a line; error is null if it was delivered. */
+    private void sent(Outgoing out, IOException error) {
+        SendListener listener = sendListener;
+        if (out.text == null) {
+            if (error != null) error.printStackTrace();
+        } else if (listener != null) {
+            if (error == null) listener.delivered(out.id, out.text);
+            else listener.failed(out.id, out.text, error);
         }
     }
 
+    /** @param listener told what became of each line given to sendMessage(). */
+    public void setSendListener(SendListener listener) {
+        sendListener = listener;
+    }
+
     public void disconnect() {
-        recieveThread.run = false;
+        if (recieveThread != null) recieveThread.run = false;
 	// XXX: Geir: Do not call suspend() on the receive thread, as this
 	// stops all receives, including waiting for ACK on the packet that
-	// is sent (username+"is closing") and the FIN...
+	// is sent (the bye message) and the FIN...
 	// --SJ 2006-01-01
 	//recieveThread.suspend();
-        send(username + " is closing");
+        if (sendThread == null) {
+            // Never connected.
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        // The sender sends what is queued, the bye last, and then closes.
+        send(ChatCodec.bye());
         try {
-            connection.close();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            if (outbox.offer(CLOSE, DISCONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                sendThread.join(DISCONNECT_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-
     }
 
     public static void main(String[] args) {
@@ -163,4 +401,15 @@ public class ChatClient {
     public void setUsername(String username) {
         this.username = username;
     }
+
+    /**
+     * Change name, also on the server.
+     *
+     * @param username
+     *            the new name.
+     */
+    public void changeName(String username) {
+        send(ChatCodec.rename(username));
+        setUsername(username);
+    }
 }
@@ -0,0 +1,22 @@
+package no.ntnu.fp.net.separat.client;
+
+/**
+ * What a {@link ChatClient} shows: {@link Gui} in the chat program, or
+ * something without a window, e.g. a simulated user in a load test. Called
+ * on the client's receive and sender threads.
+ */
+public interface ChatView {
+
+    /**
+     * Show a message.
+     * 
+     * @param message
+     *            the text.
+     * @param from
+     *            who it is from, "*" for the server.
+     */
+    public void addMessage(String message, String from);
+
+    /** Show the logged on users. */
+    public void updateUserList(String[] users);
+}
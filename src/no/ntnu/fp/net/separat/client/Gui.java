@@ -14,8 +14,13 @@ import java.awt.event.ActionEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
+import java.awt.event.ActionListener;
 import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
@@ -25,13 +30,51 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
 
 /**
  * @author Geir Vevle
  * 
  * This chat client GUI is made just as an experiment. Also used as a demo program in TTM4100 on NTNU 2005.
+ * <br>
+ * <br>
+ * addMessage() and updateUserList() may be called from any thread. They
+ * only queue what is to be shown; a Swing timer shows it on the EDT every
+ * FRAME_MILLIS milliseconds, all queued lines in one append. The window
+ * keeps the last SCROLLBACK lines, and at most that many wait in the queue,
+ * so memory stays the same however long the client runs. <br>
+ * <br>
+ * Typed lines are queued by the ChatClient, so Enter never waits for the
+ * network. While lines are not yet acknowledged the title says how many, and
+ * a line that could not be sent is shown as such.
  */
-public class Gui extends JFrame {
+public class Gui extends JFrame implements ChatView {
+
+    /** Lines kept in the message area. */
+    public static int SCROLLBACK = Integer.getInteger("ktn.client.scrollback", 2000).intValue();
+
+    /** Milliseconds between updates of the window. */
+    public static int FRAME_MILLIS = Integer.getInteger("ktn.client.frameMillis", 50).intValue();
+
+    /** Lines not shown yet, oldest first. Guarded by itself. */
+    private final ArrayDeque<String> pending = new ArrayDeque<String>();
+
+    /** Lines dropped from pending since the last update. Guarded by pending. */
+    private int skipped = 0;
+
+    /** The newest user list not shown yet, or null. */
+    private final AtomicReference<String[]> pendingUsers = new AtomicReference<String[]>();
+
+    private final Timer frame;
+
+    private final String title;
+
+    /** Lines typed and not yet delivered or failed. */
+    private final AtomicInteger unsent = new AtomicInteger();
+
+    /** unsent as shown in the title. Only used on the EDT. */
+    private int shownUnsent = 0;
 
     private JTextArea messages;
 
@@ -45,6 +88,7 @@ public class Gui extends JFrame {
 
     public Gui(String title, ChatClient target) {
         super(title);
+        this.title = title;
         this.setSize(500, 400);
         this.placeComponents();
         this.addWindowListener(new WindowAdapter() {
@@ -55,10 +99,28 @@ public class Gui extends JFrame {
         });
         this.setVisible(true);
         this.target = target;
+        target.setSendListener(new ChatClient.SendListener() {
+            public void delivered(long id, String text) {
+                unsent.decrementAndGet();
+            }
+
+            public void failed(long id, String text, IOException cause) {
+                unsent.decrementAndGet();
+                addMessage(text + " (" + cause.getMessage() + ")", "not sent");
+            }
+        });
         
         messages.setEditable(false);
         inputFelt.requestDefaultFocus();
         inputFelt.requestFocus();
+
+        frame = new Timer(FRAME_MILLIS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                showPending();
+            }
+        });
+        frame.setCoalesce(true);
+        frame.start();
     }
 
     private void placeComponents() {
@@ -90,8 +152,7 @@ public class Gui extends JFrame {
                 String newName = JOptionPane.showInputDialog(Gui.this,
                         "Enter new nick:", "Change nick",
                         JOptionPane.PLAIN_MESSAGE);
-                Gui.this.target.send("/newName: " + newName);
-                Gui.this.target.setUsername(newName);
+                if (newName != null) Gui.this.target.changeName(newName);
             }
         });
         menu.add(item);
@@ -105,7 +166,7 @@ public class Gui extends JFrame {
      * @param liste
      */
     public void updateUserList(String[] liste) {
-        loggedOn.setListData(liste);
+        pendingUsers.set(liste);
     }
 
     /**
@@ -115,6 +176,8 @@ public class Gui extends JFrame {
      * @param message
      */
     private void sendMessage(String message) {
+        // Counted first, the listener may be told before sendMessage returns.
+        unsent.incrementAndGet();
         target.sendMessage(message);
     }
 
@@ -127,7 +190,50 @@ public class Gui extends JFrame {
      *            Sender av meldingen
      */
     public void addMessage(String message, String from) {
-        messages.append(from + ":\t" + message + "\n");
+        String line = from + ":\t" + message + "\n";
+        synchronized (pending) {
+            // Would be scrolled out as soon as it is shown.
+            if (pending.size() >= SCROLLBACK) {
+                pending.removeFirst();
+                skipped++;
+            }
+            pending.addLast(line);
+        }
+    }
+
+    /** Show what was queued since the last time, on the EDT. */
+    private void showPending() {
+        String[] users = pendingUsers.getAndSet(null);
+        if (users != null) loggedOn.setListData(users);
+
+        int n = unsent.get();
+        if (n != shownUnsent) {
+            shownUnsent = n;
+            setTitle(n > 0 ? title + " (sending " + n + ")" : title);
+        }
+
+        StringBuilder batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) return;
+            batch = new StringBuilder();
+            if (skipped > 0) batch.append("*:\t").append(skipped).append(
+                    " messages came too fast to be shown.\n");
+            skipped = 0;
+            while (!pending.isEmpty()) {
+                batch.append(pending.removeFirst());
+            }
+        }
+        messages.append(batch.toString());
+
+        // Every line ends with a newline, so the last line is empty.
+        int excess = messages.getLineCount() - 1 - SCROLLBACK;
+        if (excess > 0) {
+            try {
+                messages.replaceRange("", 0, messages.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                // Counted on the EDT, where the text can not change meanwhile.
+            }
+        }
     }
 
 }
\ No newline at end of file
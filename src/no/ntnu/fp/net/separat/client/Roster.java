@@ -0,0 +1,89 @@
+package no.ntnu.fp.net.separat.client;
+
+import java.util.LinkedHashMap;
+
+/**
+ * The users logged on to the chat server, as the client knows them. <br>
+ * <br>
+ * The server numbers every change of its user list. After login it sends the
+ * whole list once; after that only what changed, see
+ * {@link no.ntnu.fp.net.separat.protocol.ChatCodec}. Users are identified by
+ * id, since names need not be unique. A change is applied if it is the next
+ * version. Older ones are ignored. If a version was missed, e.g. because the
+ * server dropped messages to a slow client, the client asks for the whole
+ * list again. Not thread-safe; meant to be used by the receiving thread.
+ */
+public class Roster {
+
+    /** What was done with a change. */
+    public enum Result {
+        /** The list changed. */
+        APPLIED,
+        /** Older than the list, nothing changed. */
+        STALE,
+        /** A version is missing; ask for the whole list. */
+        GAP
+    }
+
+    /** Version of the list; -1 until the first snapshot. */
+    private long version = -1;
+    private final LinkedHashMap<Long, String> users = new LinkedHashMap<Long, String>();
+
+    /**
+     * Replace the list.
+     *
+     * @param ids
+     *            the users' ids, in the order they logged on.
+     * @param names
+     *            the names, same order.
+     */
+    public Result snapshot(long version, long[] ids, String[] names) {
+        if (version <= this.version) return Result.STALE;
+        users.clear();
+        for (int i = 0; i < ids.length; i++) {
+            users.put(Long.valueOf(ids[i]), names[i]);
+        }
+        this.version = version;
+        return Result.APPLIED;
+    }
+
+    /** A user logged on. */
+    public Result join(long version, long id, String name) {
+        Result result = check(version);
+        if (result == Result.APPLIED) users.put(Long.valueOf(id), name);
+        return result;
+    }
+
+    /** A user left. */
+    public Result leave(long version, long id) {
+        Result result = check(version);
+        if (result == Result.APPLIED) users.remove(Long.valueOf(id));
+        return result;
+    }
+
+    /** A user changed name; it keeps its place in the list. */
+    public Result rename(long version, long id, String name) {
+        Result result = check(version);
+        if (result == Result.APPLIED) users.put(Long.valueOf(id), name);
+        return result;
+    }
+
+    /** @return the version of the list, or -1 if none has been received. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** @return the names, in the order the users logged on. */
+    public String[] getNames() {
+        return users.values().toArray(new String[users.size()]);
+    }
+
+    /** Move to the version if it is the next one. */
+    private Result check(long version) {
+        if (this.version < 0) return Result.GAP;
+        if (version <= this.version) return Result.STALE;
+        if (version != this.version + 1) return Result.GAP;
+        this.version = version;
+        return Result.APPLIED;
+    }
+}
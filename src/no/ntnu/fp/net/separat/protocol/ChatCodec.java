@@ -0,0 +1,459 @@
+package no.ntnu.fp.net.separat.protocol;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The messages between ChatServer and ChatClient. A connection carries
+ * Strings, so a message is a sequence of chars rather than bytes:
+ *
+ * <pre>
+ * MARK VERSION TYPE field...
+ * </pre>
+ *
+ * A number is written 14 bits per char, least significant first, with bit 14
+ * set on every char but the last. A text field is its length as a number
+ * followed by the chars. The chars used for framing are all below the
+ * surrogate range, so a message survives any String transport, including the
+ * UTF-8 a {@link no.ntnu.fp.net.co.CompressedConnection} compresses. <br>
+ * <br>
+ * {@link #decode(String, ChatHandler)} reads the fields in place, without
+ * cutting the message into parts, and calls the handler method of the type
+ * through a table indexed by the type. A message that is too short, has
+ * another version or an unknown type goes to
+ * {@link ChatHandler#malformed(String)} instead of throwing. Fields after
+ * the ones a type is known to have are skipped, so a field can be added to a
+ * type without a new version.
+ */
+public final class ChatCodec {
+
+    /** First char of every message. */
+    public static final char MARK = '\u0002';
+
+    /** Changed when the meaning of an existing type changes. */
+    public static final char VERSION = 1;
+
+    public static final char HELLO = 1;
+    public static final char CHAT = 2;
+    public static final char RENAME = 3;
+    public static final char BYE = 4;
+    public static final char NOTICE = 5;
+    public static final char ROSTER = 6;
+    public static final char JOINED = 7;
+    public static final char LEFT = 8;
+    public static final char RENAMED = 9;
+    public static final char ROSTER_REQUEST = 10;
+    public static final char SEARCH = 11;
+    public static final char SEARCH_RESULT = 12;
+    public static final char JOIN_ROOM = 13;
+    public static final char LEAVE_ROOM = 14;
+
+    /**
+     * The room every user is in. A chat line without a room, as sent before
+     * there were rooms, is for this one.
+     */
+    public static final String LOBBY = "lobby";
+
+    private static final int DATA_BITS = 14;
+    private static final int DATA_MASK = (1 << DATA_BITS) - 1;
+    private static final int MORE = 1 << DATA_BITS;
+
+    private ChatCodec() {
+    }
+
+    /** @return the message a client logs on with. */
+    public static String hello(String name) {
+        return start(HELLO, name.length()).text(name).done();
+    }
+
+    /** @return a chat line in the lobby. */
+    public static String chat(String from, String text) {
+        return start(CHAT, from.length() + text.length()).text(from).text(text).done();
+    }
+
+    /** @return a chat line in a room. */
+    public static String chat(String from, String text, String room) {
+        if (room.equals(LOBBY)) return chat(from, text);
+        return start(CHAT, from.length() + text.length() + room.length()).text(from).text(text)
+                .text(room).done();
+    }
+
+    /** @return the message a client changes its name with. */
+    public static String rename(String name) {
+        return start(RENAME, name.length()).text(name).done();
+    }
+
+    /** @return the message a client sends before it closes. */
+    public static String bye() {
+        return start(BYE, 0).done();
+    }
+
+    /** @return a message from the server itself. */
+    public static String notice(String text) {
+        return start(NOTICE, text.length()).text(text).done();
+    }
+
+    /**
+     * @param users
+     *            id and name of every user, in the order they logged on.
+     * @return the whole roster.
+     */
+    public static String roster(long version, Map<Long, String> users) {
+        Writer w = start(ROSTER, users.size() * 12).number(version).number(users.size());
+        for (Iterator<Map.Entry<Long, String>> it = users.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, String> e = it.next();
+            w.number(e.getKey().longValue()).text(e.getValue());
+        }
+        return w.done();
+    }
+
+    /** @return the message telling that a user logged on. */
+    public static String joined(long version, long id, String name) {
+        return start(JOINED, name.length()).number(version).number(id).text(name).done();
+    }
+
+    /** @return the message telling that a user left. */
+    public static String left(long version, long id) {
+        return start(LEFT, 0).number(version).number(id).done();
+    }
+
+    /** @return the message telling that a user changed name. */
+    public static String renamed(long version, long id, String name) {
+        return start(RENAMED, name.length()).number(version).number(id).text(name).done();
+    }
+
+    /** @return the message a client asks for the whole roster with. */
+    public static String rosterRequest() {
+        return start(ROSTER_REQUEST, 0).done();
+    }
+
+    /** @return the message a client joins a room with. */
+    public static String joinRoom(String room) {
+        return start(JOIN_ROOM, room.length()).text(room).done();
+    }
+
+    /** @return the message a client leaves a room with. */
+    public static String leaveRoom(String room) {
+        return start(LEAVE_ROOM, room.length()).text(room).done();
+    }
+
+    /** @return the message a client searches the history with. */
+    public static String search(String query) {
+        return start(SEARCH, query.length()).text(query).done();
+    }
+
+    /**
+     * @param times
+     *            when each line was said, in milliseconds.
+     * @return the lines found by a search, newest first.
+     */
+    public static String searchResult(String query, long[] times, String[] from, String[] texts) {
+        Writer w = start(SEARCH_RESULT, query.length() + texts.length * 40).text(query).number(
+                times.length);
+        for (int i = 0; i < times.length; i++) {
+            w.number(times[i]).text(from[i]).text(texts[i]);
+        }
+        return w.done();
+    }
+
+    /**
+     * Call the handler method for a message.
+     *
+     * @param message
+     *            a message as received.
+     * @param handler
+     *            gets the message.
+     */
+    public static void decode(String message, ChatHandler handler) {
+        if (message == null || message.length() < 3 || message.charAt(0) != MARK
+                || message.charAt(1) != VERSION) {
+            handler.malformed(message);
+            return;
+        }
+        char type = message.charAt(2);
+        Decoder decoder = type < DECODERS.length ? DECODERS[type] : null;
+        if (decoder == null) {
+            handler.malformed(message);
+            return;
+        }
+        decoder.decode(new Reader(message), handler);
+    }
+
+    /** @return the type of a message, or -1 if it is not a valid frame. */
+    public static int typeOf(String message) {
+        if (message == null || message.length() < 3 || message.charAt(0) != MARK
+                || message.charAt(1) != VERSION) return -1;
+        return message.charAt(2);
+    }
+
+    /** Reads the fields of one type and calls the handler. */
+    private static abstract class Decoder {
+        final void decode(Reader r, ChatHandler handler) {
+            try {
+                read(r);
+            }
+            catch (Malformed e) {
+                handler.malformed(r.message);
+                return;
+            }
+            call(r, handler);
+        }
+
+        /** Read the fields into the reader's slots. */
+        abstract void read(Reader r);
+
+        abstract void call(Reader r, ChatHandler handler);
+    }
+
+    private static final Decoder[] DECODERS = new Decoder[LEAVE_ROOM + 1];
+
+    static {
+        DECODERS[HELLO] = new Decoder() {
+            void read(Reader r) {
+                r.s1 = r.text();
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.hello(r.s1);
+            }
+        };
+        DECODERS[CHAT] = new Decoder() {
+            void read(Reader r) {
+                r.s1 = r.text();
+                r.s2 = r.text();
+                r.s3 = r.more() ? r.text() : LOBBY;
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.chat(r.s3, r.s1, r.s2);
+            }
+        };
+        DECODERS[RENAME] = new Decoder() {
+            void read(Reader r) {
+                r.s1 = r.text();
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.rename(r.s1);
+            }
+        };
+        DECODERS[BYE] = new Decoder() {
+            void read(Reader r) {
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.bye();
+            }
+        };
+        DECODERS[NOTICE] = new Decoder() {
+            void read(Reader r) {
+                r.s1 = r.text();
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.notice(r.s1);
+            }
+        };
+        DECODERS[ROSTER] = new Decoder() {
+            void read(Reader r) {
+                r.n1 = r.number();
+                int count = r.count();
+                // Each user takes at least two chars.
+                if (count > (r.message.length() - r.pos) / 2) throw MALFORMED;
+                r.ids = new long[count];
+                r.names = new String[count];
+                for (int i = 0; i < count; i++) {
+                    r.ids[i] = r.number();
+                    r.names[i] = r.text();
+                }
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.roster(r.n1, r.ids, r.names);
+            }
+        };
+        DECODERS[JOINED] = new Decoder() {
+            void read(Reader r) {
+                r.n1 = r.number();
+                r.n2 = r.number();
+                r.s1 = r.text();
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.joined(r.n1, r.n2, r.s1);
+            }
+        };
+        DECODERS[LEFT] = new Decoder() {
+            void read(Reader r) {
+                r.n1 = r.number();
+                r.n2 = r.number();
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.left(r.n1, r.n2);
+            }
+        };
+        DECODERS[RENAMED] = new Decoder() {
+            void read(Reader r) {
+                r.n1 = r.number();
+                r.n2 = r.number();
+                r.s1 = r.text();
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.renamed(r.n1, r.n2, r.s1);
+            }
+        };
+        DECODERS[ROSTER_REQUEST] = new Decoder() {
+            void read(Reader r) {
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.rosterRequest();
+            }
+        };
+        DECODERS[SEARCH] = new Decoder() {
+            void read(Reader r) {
+                r.s1 = r.text();
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.search(r.s1);
+            }
+        };
+        DECODERS[SEARCH_RESULT] = new Decoder() {
+            void read(Reader r) {
+                r.s1 = r.text();
+                int count = r.count();
+                // Each line takes at least three chars.
+                if (count > (r.message.length() - r.pos) / 3) throw MALFORMED;
+                r.ids = new long[count];
+                r.names = new String[count];
+                r.texts = new String[count];
+                for (int i = 0; i < count; i++) {
+                    r.ids[i] = r.number();
+                    r.names[i] = r.text();
+                    r.texts[i] = r.text();
+                }
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.searchResult(r.s1, r.ids, r.names, r.texts);
+            }
+        };
+        DECODERS[JOIN_ROOM] = new Decoder() {
+            void read(Reader r) {
+                r.s1 = r.text();
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.joinRoom(r.s1);
+            }
+        };
+        DECODERS[LEAVE_ROOM] = new Decoder() {
+            void read(Reader r) {
+                r.s1 = r.text();
+            }
+
+            void call(Reader r, ChatHandler h) {
+                h.leaveRoom(r.s1);
+            }
+        };
+    }
+
+    /**
+     * Thrown by Reader when a field runs past the end of the message. Only
+     * {@link #MALFORMED} is ever thrown; it has no stack trace, so a flood of
+     * bad messages costs no allocation.
+     */
+    private static final class Malformed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final Malformed MALFORMED = new Malformed();
+
+    /** A position in a message, and the fields read so far. */
+    private static final class Reader {
+        final String message;
+        int pos = 3;
+        long n1, n2;
+        String s1, s2, s3;
+        long[] ids;
+        String[] names;
+        String[] texts;
+
+        Reader(String message) {
+            this.message = message;
+        }
+
+        /** @return true if there are fields left. */
+        boolean more() {
+            return pos < message.length();
+        }
+
+        /** @return a number, never negative: more than 63 bits is malformed. */
+        long number() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += DATA_BITS) {
+                if (pos >= message.length()) throw MALFORMED;
+                char c = message.charAt(pos++);
+                long bits = c & DATA_MASK;
+                if (shift + DATA_BITS > 63 && bits >>> (63 - shift) != 0) throw MALFORMED;
+                value |= bits << shift;
+                if ((c & MORE) == 0) return value;
+            }
+            throw MALFORMED;
+        }
+
+        /** @return a length or count, at most what fits in an int. */
+        int count() {
+            long count = number();
+            if (count < 0 || count > Integer.MAX_VALUE) throw MALFORMED;
+            return (int)count;
+        }
+
+        String text() {
+            int length = count();
+            if (length > message.length() - pos) throw MALFORMED;
+            int start = pos;
+            pos += length;
+            return message.substring(start, pos);
+        }
+    }
+
+    private static Writer start(char type, int sizeHint) {
+        return new Writer(type, sizeHint);
+    }
+
+    private static final class Writer {
+        private final StringBuilder sb;
+
+        Writer(char type, int sizeHint) {
+            sb = new StringBuilder(8 + sizeHint + sizeHint / 4);
+            sb.append(MARK).append(VERSION).append(type);
+        }
+
+        Writer number(long value) {
+            while ((value & ~(long)DATA_MASK) != 0) {
+                sb.append((char)(value & DATA_MASK | MORE));
+                value >>>= DATA_BITS;
+            }
+            sb.append((char)value);
+            return this;
+        }
+
+        Writer text(String s) {
+            number(s.length());
+            sb.append(s);
+            return this;
+        }
+
+        String done() {
+            return sb.toString();
+        }
+    }
+}
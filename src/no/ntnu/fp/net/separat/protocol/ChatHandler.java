@@ -0,0 +1,91 @@
+package no.ntnu.fp.net.separat.protocol;
+
+/**
+ * Receives the messages {@link ChatCodec#decode(String, ChatHandler)} finds,
+ * one method per message type. All methods do nothing; the server and the
+ * client override the ones they expect.
+ */
+public abstract class ChatHandler {
+
+    /** A client logs on. Client to server. */
+    public void hello(String name) {
+    }
+
+    /**
+     * A chat line. Both ways; the server replaces the sender with the name it
+     * knows the client by.
+     *
+     * @param room
+     *            the room it is said in, {@link ChatCodec#LOBBY} if the
+     *            message has none.
+     */
+    public void chat(String room, String from, String text) {
+    }
+
+    /** A client joins a room, created if no one is in it. Client to server. */
+    public void joinRoom(String room) {
+    }
+
+    /** A client leaves a room. Client to server. */
+    public void leaveRoom(String room) {
+    }
+
+    /** A client changes its name. Client to server. */
+    public void rename(String name) {
+    }
+
+    /** A client is about to close. Client to server. */
+    public void bye() {
+    }
+
+    /** A message from the server itself, e.g. that someone joined. */
+    public void notice(String text) {
+    }
+
+    /**
+     * All logged on users. Server to client.
+     *
+     * @param ids
+     *            the users' ids, in the order they logged on.
+     * @param names
+     *            the names, same order.
+     */
+    public void roster(long version, long[] ids, String[] names) {
+    }
+
+    /** A user logged on. Server to client. */
+    public void joined(long version, long id, String name) {
+    }
+
+    /** A user left. Server to client. */
+    public void left(long version, long id) {
+    }
+
+    /** A user changed name. Server to client. */
+    public void renamed(long version, long id, String name) {
+    }
+
+    /** The client needs the whole roster. Client to server. */
+    public void rosterRequest() {
+    }
+
+    /** Search the history. Client to server. */
+    public void search(String query) {
+    }
+
+    /**
+     * The lines a search found, newest first. Server to client.
+     *
+     * @param times
+     *            when each line was said, in milliseconds.
+     */
+    public void searchResult(String query, long[] times, String[] from, String[] texts) {
+    }
+
+    /**
+     * A message that is not a valid frame of this protocol version, or is of
+     * a type this version does not know.
+     */
+    public void malformed(String message) {
+    }
+}
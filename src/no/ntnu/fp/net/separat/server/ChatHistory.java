@@ -0,0 +1,369 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The messages the server has broadcast, kept on disk so a user that joins
+ * can be shown what was said before. <br>
+ * <br>
+ * The history is a directory of segments. A segment is a data file and an
+ * index file, both memory-mapped at a fixed size and named after the number
+ * of the segment's first message, e.g. 00000000000000004096.log and .idx.
+ * The data file starts with a {@value #HEADER_SIZE} byte header: the magic
+ * {@link #MAGIC}, a short version, a short reserved and the number of the
+ * first message. Each message is then stored as a long time in
+ * milliseconds, an int length in chars and the chars. The index has one
+ * {@value #INDEX_ENTRY} byte entry per message: the time and the position
+ * of the message in the data file. An entry only counts once its position
+ * is written, which is done last, so a message half written when the server
+ * stopped is not seen. <br>
+ * <br>
+ * A new segment is started when the data or the index of the current one is
+ * full. Then the oldest segments are deleted while there are more than the
+ * limit, or while all their messages are older than the maximum age.
+ * Replaying reads the messages straight from the mapped files; only the
+ * message being handed over is on the heap.
+ */
+class ChatHistory {
+
+    /** "KTNH". */
+    static final int MAGIC = 0x4B544E48;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    /** Time and length before the chars of each message. */
+    static final int RECORD_HEADER = 12;
+    static final int INDEX_ENTRY = 12;
+    /** Index entries per data byte; an index fills first only for short messages. */
+    static final int BYTES_PER_ENTRY = 64;
+
+    private static final String DATA = ".log";
+    private static final String INDEX = ".idx";
+
+    /** Receives replayed messages. */
+    interface Sink {
+        /**
+         * @param number
+         *            the message number, counting from the first message
+         *            ever added.
+         */
+        void message(long number, long time, String message);
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long maxAgeMillis;
+
+    /** Oldest first; the last one is written to. */
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    private long lastTime = 0;
+
+    /**
+     * Open the history in a directory, continuing after the messages already
+     * there.
+     *
+     * @param dir
+     *            the directory, created if missing.
+     * @param segmentBytes
+     *            size of a data file.
+     * @param maxSegments
+     *            segments kept, at least 1.
+     * @param maxAgeMillis
+     *            delete segments whose messages are all older than this; 0
+     *            to keep them regardless of age.
+     * @throws IOException
+     *             if the directory or a segment can not be created or mapped.
+     */
+    ChatHistory(File dir, int segmentBytes, int maxSegments, long maxAgeMillis)
+            throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.maxAgeMillis = maxAgeMillis;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can not create " + dir);
+
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.getName().endsWith(DATA);
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        for (int i = 0; i < files.length; i++) {
+            Segment segment = Segment.open(files[i], indexFile(files[i]));
+            if (segment == null) continue;
+            segments.add(segment);
+            if (segment.count > 0) lastTime = Math.max(lastTime, segment.lastTime());
+        }
+        if (segments.isEmpty()) roll(0);
+        else if (last().isFull()) roll(last().next());
+        retain();
+    }
+
+    /**
+     * Add a message.
+     *
+     * @return the number of the message, or -1 if it is too long to fit in
+     *         a segment.
+     * @throws IOException
+     *             if a new segment was needed and could not be created.
+     */
+    synchronized long append(String message) throws IOException {
+        int size = RECORD_HEADER + 2 * message.length();
+        if (size > segmentBytes - HEADER_SIZE) return -1;
+        // Times never go backwards, so the index can be searched by time.
+        lastTime = Math.max(lastTime, System.currentTimeMillis());
+        if (!last().fits(size)) {
+            roll(last().next());
+            retain();
+        }
+        last().append(lastTime, message);
+        return last().next() - 1;
+    }
+
+    /**
+     * Hand messages to a sink, oldest first.
+     *
+     * @param since
+     *            only messages from this time on, in milliseconds; 0 for any.
+     * @param max
+     *            at most this many, the newest.
+     * @return number of messages replayed.
+     */
+    synchronized int replay(long since, int max, Sink sink) {
+        long end = last().next();
+        long first = Math.max(segments.get(0).base, end - max);
+        if (since > 0) first = Math.max(first, firstSince(since));
+        int replayed = 0;
+        for (int s = 0; s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            if (segment.next() <= first) continue;
+            int from = (int)Math.max(0, first - segment.base);
+            for (int i = from; i < segment.count; i++) {
+                sink.message(segment.base + i, segment.time(i), segment.message(i));
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Hand one message to a sink.
+     *
+     * @return false if the message is not kept.
+     */
+    synchronized boolean read(long number, Sink sink) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).base <= number) lo = mid;
+            else hi = mid - 1;
+        }
+        Segment segment = segments.get(lo);
+        if (number < segment.base || number >= segment.next()) return false;
+        int i = (int)(number - segment.base);
+        sink.message(number, segment.time(i), segment.message(i));
+        return true;
+    }
+
+    /** @return number of the oldest message kept. */
+    synchronized long first() {
+        return segments.get(0).base;
+    }
+
+    /** @return number of messages kept. */
+    synchronized long size() {
+        return last().next() - segments.get(0).base;
+    }
+
+    /** Write what is mapped to disk. */
+    synchronized void flush() {
+        last().data.force();
+        last().index.force();
+    }
+
+    /** @return the number of the first message at or after a time. */
+    private long firstSince(long since) {
+        for (int s = 0; s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            if (segment.count == 0 || segment.lastTime() < since) continue;
+            int lo = 0;
+            int hi = segment.count - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (segment.time(mid) < since) lo = mid + 1;
+                else hi = mid;
+            }
+            return segment.base + lo;
+        }
+        return last().next();
+    }
+
+    private Segment last() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private void roll(long base) throws IOException {
+        if (!segments.isEmpty()) flush();
+        String name = String.format("%020d", Long.valueOf(base));
+        segments.add(Segment.create(new File(dir, name + DATA), new File(dir, name + INDEX),
+                base, segmentBytes));
+    }
+
+    /** Delete the segments beyond the limits, never the current one. */
+    private void retain() {
+        long oldest = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+        while (segments.size() > 1) {
+            Segment segment = segments.get(0);
+            boolean tooOld = segment.count == 0 || segment.lastTime() < oldest;
+            if (segments.size() <= maxSegments && !tooOld) break;
+            segments.remove(0);
+            segment.delete();
+        }
+    }
+
+    private static File indexFile(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length()
+                - DATA.length())
+                + INDEX);
+    }
+
+    /** One data file and its index. */
+    private static final class Segment {
+        final File dataFile;
+        final File indexFile;
+        final long base;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+        /** Messages in the segment. */
+        int count;
+        /** Where the next message goes in the data file. */
+        int end;
+
+        private Segment(File dataFile, File indexFile, long base, MappedByteBuffer data,
+                MappedByteBuffer index) {
+            this.dataFile = dataFile;
+            this.indexFile = indexFile;
+            this.base = base;
+            this.data = data;
+            this.index = index;
+        }
+
+        static Segment create(File dataFile, File indexFile, long base, int bytes)
+                throws IOException {
+            MappedByteBuffer data = map(dataFile, bytes);
+            MappedByteBuffer index = map(indexFile, bytes / BYTES_PER_ENTRY * INDEX_ENTRY);
+            data.putInt(0, MAGIC);
+            data.putShort(4, (short)VERSION);
+            data.putShort(6, (short)0);
+            data.putLong(8, base);
+            Segment segment = new Segment(dataFile, indexFile, base, data, index);
+            segment.end = HEADER_SIZE;
+            return segment;
+        }
+
+        /** @return the segment, or null if it is not one. */
+        static Segment open(File dataFile, File indexFile) throws IOException {
+            if (dataFile.length() < HEADER_SIZE || !indexFile.isFile()) return null;
+            MappedByteBuffer data = map(dataFile, (int)dataFile.length());
+            if (data.getInt(0) != MAGIC || data.getShort(4) != VERSION) return null;
+            MappedByteBuffer index = map(indexFile, (int)indexFile.length());
+            Segment segment = new Segment(dataFile, indexFile, data.getLong(8), data, index);
+            int capacity = index.capacity() / INDEX_ENTRY;
+            while (segment.count < capacity && segment.position(segment.count) != 0) {
+                segment.count++;
+            }
+            if (segment.count == 0) {
+                segment.end = HEADER_SIZE;
+            }
+            else {
+                int p = segment.position(segment.count - 1);
+                segment.end = p + RECORD_HEADER + 2 * data.getInt(p + 8);
+            }
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int bytes) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // The mapping stays valid after the file is closed.
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+            finally {
+                raf.close();
+            }
+        }
+
+        /** @return number of the message after the last one. */
+        long next() {
+            return base + count;
+        }
+
+        boolean isFull() {
+            return (count + 1) * INDEX_ENTRY > index.capacity() || end + RECORD_HEADER > data.capacity();
+        }
+
+        boolean fits(int size) {
+            return (count + 1) * INDEX_ENTRY <= index.capacity() && end + size <= data.capacity();
+        }
+
+        void append(long time, String message) {
+            ByteBuffer b = data.duplicate();
+            b.position(end);
+            b.putLong(time).putInt(message.length());
+            for (int i = 0; i < message.length(); i++) {
+                b.putChar(message.charAt(i));
+            }
+            int entry = count * INDEX_ENTRY;
+            index.putLong(entry, time);
+            index.putInt(entry + 8, end);
+            end = b.position();
+            count++;
+        }
+
+        long time(int i) {
+            return index.getLong(i * INDEX_ENTRY);
+        }
+
+        int position(int i) {
+            return index.getInt(i * INDEX_ENTRY + 8);
+        }
+
+        long lastTime() {
+            return time(count - 1);
+        }
+
+        String message(int i) {
+            int p = position(i);
+            int length = data.getInt(p + 8);
+            ByteBuffer b = data.duplicate();
+            b.position(p + RECORD_HEADER);
+            CharBuffer chars = b.asCharBuffer();
+            chars.limit(length);
+            return chars.toString();
+        }
+
+        void delete() {
+            // The mapping is released when the buffers are collected; until
+            // then some platforms refuse to delete, and the files are tried
+            // again when the server starts.
+            dataFile.delete();
+            indexFile.delete();
+        }
+    }
+}
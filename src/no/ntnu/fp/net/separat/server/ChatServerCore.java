@@ -0,0 +1,815 @@
+/*
+ * Created on 02.feb.2004
+ *
+ */
+package no.ntnu.fp.net.separat.server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.CompressedConnection;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.SharedMessage;
+import no.ntnu.fp.net.co.SimpleConnection;
+import no.ntnu.fp.net.separat.client.ChatClient;
+import no.ntnu.fp.net.separat.protocol.ChatCodec;
+import no.ntnu.fp.net.separat.protocol.ChatHandler;
+
+/**
+ * @author Geir Vevle
+ * 
+ * This is a Chat srver made only as a experiment. <br>
+ * <br>
+ * The server itself, without a window: it uses neither AWT nor Swing, so it
+ * runs on a machine without a display. Start it with main(), or show it in
+ * a {@link ChatServer} window.
+ */
+public class ChatServerCore {
+
+    public static boolean SIMPLE_CONNECTION = false;
+
+    /** Messages queued in memory per user before SLOW_CONSUMER applies. */
+    public static int QUEUE_LIMIT = Integer.getInteger("ktn.server.queueLimit", 256).intValue();
+
+    /** What to do with a user whose queue is full. */
+    public static SlowConsumerPolicy SLOW_CONSUMER = SlowConsumerPolicy.valueOf(System
+            .getProperty("ktn.server.slowConsumer", "DROP_OLDEST"));
+
+    /** Threads sending queued messages to users. */
+    public static int WRITER_THREADS = Integer.getInteger("ktn.server.writers", 4).intValue();
+
+    /**
+     * Milliseconds a writer may spend sending one message to a user. A user
+     * that takes longer has stalled: with SLOW_CONSUMER DISCONNECT it is
+     * dropped, otherwise its messages are sent by threads of their own from
+     * then on. 0 for no deadline.
+     */
+    public static int SEND_DEADLINE = Integer.getInteger("ktn.server.sendDeadline", 2000).intValue();
+
+    /** Directory of the chat history; empty to keep none. */
+    public static String HISTORY_DIR = System.getProperty("ktn.server.history", "history");
+
+    /** Size in bytes of a history segment file. */
+    public static int HISTORY_SEGMENT_BYTES = Integer.getInteger("ktn.server.historySegmentBytes",
+            4 << 20).intValue();
+
+    /** History segments kept on disk. */
+    public static int HISTORY_SEGMENTS = Integer.getInteger("ktn.server.historySegments", 8)
+            .intValue();
+
+    /** History older than this many milliseconds is deleted; 0 keeps it. */
+    public static long HISTORY_MAX_AGE = Long.getLong("ktn.server.historyMaxAge",
+            7L * 24 * 60 * 60 * 1000).longValue();
+
+    /** Messages from the history shown to a user that joins, at most QUEUE_LIMIT / 2. */
+    public static int HISTORY_REPLAY = Integer.getInteger("ktn.server.historyReplay", 50).intValue();
+
+    /** If above 0, only history younger than this many milliseconds is shown on join. */
+    public static long HISTORY_REPLAY_AGE = Long.getLong("ktn.server.historyReplayAge", 0)
+            .longValue();
+
+    /** Most lines returned by a search. */
+    public static int SEARCH_LIMIT = Integer.getInteger("ktn.server.searchLimit", 20).intValue();
+
+    private Connection server;
+
+    /** What has been said; null if no history is kept. */
+    private ChatHistory history;
+
+    /** The chat lines in the history by word and sender; null with the history. */
+    private HistoryIndex index;
+
+    private String addressServer = "localhost";
+
+    private final UserRegistry<User> users = new UserRegistry<User>();
+
+    /**
+     * The rooms by name. A room is created when the first user joins it and
+     * removed when the last one leaves, except the lobby, which every user
+     * is in.
+     */
+    private final ConcurrentHashMap<String, Room<User>> rooms = new ConcurrentHashMap<String, Room<User>>();
+
+    private int listenPort = 4444;
+
+    private volatile boolean run = true;
+
+    private InetAddress localAddress;
+
+    private static boolean debug = true;
+
+    /**
+     * Sends the queued messages of all users. Grows by one thread for each
+     * writer blocked in a stalled user's send, until that send returns.
+     */
+    private final ThreadPoolExecutor writers = (ThreadPoolExecutor)Executors.newFixedThreadPool(
+            WRITER_THREADS, daemons("ChatServer-writer-"));
+
+    /** Sends the queued messages of users that have stalled a writer. */
+    private final ExecutorService slowWriters = Executors
+            .newCachedThreadPool(daemons("ChatServer-slow-writer-"));
+
+    /** Looks for sends that have missed SEND_DEADLINE. */
+    private final ScheduledExecutorService watchdog = Executors
+            .newSingleThreadScheduledExecutor(daemons("ChatServer-watchdog-"));
+
+    /** User.sendingSince of a send the watchdog has found stalled. */
+    private static final long STALLED = Long.MIN_VALUE;
+
+    private static ThreadFactory daemons(final String prefix) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + ++count);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    //Lagrer info om hver og en bruker
+    private class User {
+        public String name;
+        private RecieveThread recieveThread;
+        public Connection conn;
+        private final OutboundQueue outbox;
+        /** Id in the roster; set when registered. */
+        private long id = -1;
+        /** The rooms the user is in. */
+        private final Set<Room<User>> rooms = Collections
+                .newSetFromMap(new ConcurrentHashMap<Room<User>, Boolean>());
+        /**
+         * System.nanoTime() when the current send started, 0 while not
+         * sending, STALLED once the watchdog has found the send too slow.
+         */
+        private final AtomicLong sendingSince = new AtomicLong();
+        /** Set once the user has stalled a writer; it never goes back. */
+        private volatile boolean stalled = false;
+
+        public User(String name, Connection conn) {
+            this.name = name;
+            this.conn = conn;
+            outbox = new OutboundQueue(writers, QUEUE_LIMIT, SLOW_CONSUMER) {
+                protected void deliver(SharedMessage msg) {
+                    User.this.send(msg);
+                }
+
+                protected void overflowed() {
+                    writers.execute(new Runnable() {
+                        public void run() {
+                            dropSlowUser();
+                        }
+                    });
+                }
+            };
+            recieveThread = new RecieveThread();
+            recieveThread.start();
+        }
+
+        private class RecieveThread extends Thread {
+            public boolean run = true;
+
+            public void run() {
+                run = true;
+                while (run) {
+                    try {
+                        User.this.recieve(User.this.conn.receive());
+                    } catch (ConnectException e) {
+                        e.printStackTrace();
+                    }
+		    catch (EOFException e) {
+		      DBG("User.run(): Disconnect was requested.");
+		      run = false;
+		      outbox.close();
+		      ChatServerCore.this.leaveRooms(User.this);
+		      try { conn.close(); }
+		      catch (IOException ioe) {
+			System.err.println("Chat server: IOException while" +
+					   "closing connection: " +
+					   ioe.getMessage());
+		      }
+		      if (!ChatServerCore.this.removeUser(User.this))
+			DBG("User.run(): Unable to remove 'this' from list " +
+			    "of users - expect errors!");
+		      ChatServerCore.this.say(ChatCodec.notice(User.this.name + " disconnected."));
+		    } catch (IOException e) {
+		      DBG("User.run(): Error: " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        // A bad message must not end the user's thread.
+                        DBG("User.run(): Ignoring message from " + User.this.name + ": " + e);
+                    }
+                }
+            }
+        }
+
+        /** Handles the messages from this user. */
+        private final ChatHandler handler = new ChatHandler() {
+            public void chat(String room, String from, String text) {
+                Room<User> target = ChatServerCore.this.rooms.get(roomKey(room));
+                // Everybody may talk in the lobby, also before it is joined.
+                if (target == null || !target.isLobby() && !target.contains(User.this)) {
+                    sendTo(User.this, ChatCodec.notice("You are not in #" + room + "."));
+                    return;
+                }
+                // Sent under the name the server knows, whatever the client says.
+                ChatServerCore.this.sayChat(target, name, text);
+            }
+
+            public void joinRoom(String room) {
+                String key = roomKey(room);
+                if (!Room.isValidName(key)) {
+                    sendTo(User.this, ChatCodec.notice("Not a room name: " + room));
+                    return;
+                }
+                ChatServerCore.this.joinRoom(User.this, key);
+            }
+
+            public void leaveRoom(String room) {
+                Room<User> target = ChatServerCore.this.rooms.get(roomKey(room));
+                if (target == null || !target.contains(User.this)) {
+                    sendTo(User.this, ChatCodec.notice("You are not in #" + room + "."));
+                }
+                else if (target.isLobby()) {
+                    sendTo(User.this, ChatCodec.notice("Everybody is in the lobby."));
+                }
+                else {
+                    ChatServerCore.this.leaveRoom(User.this, target);
+                    sendTo(User.this, ChatCodec.notice("You left " + target + "."));
+                }
+            }
+
+            public void rename(String newName) {
+                String oldName = name;
+                name = newName;
+                ChatServerCore.this.renameUser(User.this, name);
+                ChatServerCore.this.say(ChatCodec.notice(oldName + " changed nick to " + name + "."));
+            }
+
+            public void bye() {
+                // The connection is closed next, and the EOF cleans up.
+            }
+
+            public void rosterRequest() {
+                ChatServerCore.this.sendRoster(User.this);
+            }
+
+            public void search(String query) {
+                ChatServerCore.this.search(User.this, query);
+            }
+
+            public void malformed(String message) {
+                DBG("User.recieve(): Ignoring malformed message from " + name + ".");
+            }
+        };
+
+        private void recieve(String mess) {
+            ChatCodec.decode(mess, handler);
+        }
+
+        /** Disconnect a user that can not keep up with its messages. */
+        private void dropSlowUser() {
+            DBG("User.dropSlowUser(): " + name + " is too slow, disconnecting.");
+            recieveThread.run = false;
+            outbox.close();
+            ChatServerCore.this.leaveRooms(this);
+            ChatServerCore.this.removeUser(this);
+            try {
+                conn.close();
+            } catch (IOException e) {
+                DBG("User.dropSlowUser(): " + e.getMessage());
+            }
+            ChatServerCore.this.say(ChatCodec.notice(name + " disconnected (too slow)."));
+        }
+
+        /**
+         * Called by the watchdog when a send started at the given time has
+         * missed the deadline. The writer stuck in it is replaced until it
+         * returns, and the user no longer uses the shared writers.
+         */
+        private void missedDeadline(long since) {
+            if (stalled || !sendingSince.compareAndSet(since, STALLED)) return;
+            stalled = true;
+            addWriter();
+            DBG("User.missedDeadline(): " + name + " stalled a writer.");
+            if (SLOW_CONSUMER == SlowConsumerPolicy.DISCONNECT) {
+                // Closing can wait for the peer too, so not on the watchdog.
+                slowWriters.execute(new Runnable() {
+                    public void run() {
+                        dropSlowUser();
+                    }
+                });
+            }
+            else {
+                outbox.moveTo(slowWriters);
+            }
+        }
+
+        private void send(SharedMessage mess) {
+            long start = System.nanoTime();
+            sendingSince.set(start == 0 || start == STALLED ? 1 : start);
+            try {
+                mess.sendTo(conn);
+            } catch (ConnectException e) {
+	      DBG("User.send(): ConnectException: '" + e.getMessage() +
+		  "' while sending message '" + mess.getText() + "'");
+	    } catch (EOFException exp) {
+	      DBG("User.send(): Disconnect requested.");
+	      this.recieveThread.run = false;
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            } finally {
+                if (sendingSince.getAndSet(0) == STALLED) removeWriter();
+            }
+        }
+    }
+
+    /** Find the users whose current send has taken longer than SEND_DEADLINE. */
+    private void checkSendDeadlines() {
+        long now = System.nanoTime();
+        long deadline = TimeUnit.MILLISECONDS.toNanos(SEND_DEADLINE);
+        for (User user : users.users()) {
+            long since = user.sendingSince.get();
+            if (since != 0 && since != STALLED && now - since > deadline)
+                user.missedDeadline(since);
+        }
+    }
+
+    /** Add a writer in place of one that is blocked in a stalled send. */
+    private void addWriter() {
+        synchronized (writers) {
+            writers.setMaximumPoolSize(writers.getMaximumPoolSize() + 1);
+            writers.setCorePoolSize(writers.getCorePoolSize() + 1);
+        }
+    }
+
+    /** Remove the writer added when a stalled send has returned. */
+    private void removeWriter() {
+        synchronized (writers) {
+            writers.setCorePoolSize(writers.getCorePoolSize() - 1);
+            writers.setMaximumPoolSize(writers.getMaximumPoolSize() - 1);
+        }
+    }
+
+    /**
+     * Queue a message for every user and return. The writer threads send it,
+     * so a slow user does not hold up the others. The message is encoded
+     * once, as a {@link SharedMessage}, and the same encoding is sent to
+     * every user. <br>
+     * <br>
+     * Users that join or leave meanwhile may or may not get the message. The
+     * method is synchronized only so that all users get concurrent broadcasts
+     * in the same order.
+     */
+    synchronized void broadcast(String mess) {
+        SharedMessage shared = new SharedMessage(mess);
+        for (User element : users.users()) {
+            element.outbox.offer(shared);
+        }
+        shared.release();
+    }
+
+    /**
+     * Broadcast a chat line or notice, and keep it in the history.
+     *
+     * @return its number in the history, or -1 if it is not kept.
+     */
+    synchronized long say(String mess) {
+        long number = record(mess);
+        broadcast(mess);
+        return number;
+    }
+
+    /**
+     * Send a chat line to the members of a room, keep it in the history and
+     * index it. Done under the room's lock, so the members get the room's
+     * lines in the order they are in the history, while other rooms go on.
+     * The server's lock is only held while the line is recorded.
+     */
+    void sayChat(Room<User> room, String from, String text) {
+        String mess = ChatCodec.chat(from, text, room.getName());
+        synchronized (room) {
+            synchronized (this) {
+                long number = record(mess);
+                if (number >= 0) index.add(number, room.getName(), from, text);
+            }
+            roomcast(room, mess);
+        }
+    }
+
+    /**
+     * Queue a message for the members of a room only, so the cost is the
+     * size of the room, not the number of users. Hold the room's lock.
+     */
+    private void roomcast(Room<User> room, String mess) {
+        SharedMessage shared = new SharedMessage(mess);
+        int queued = 0;
+        for (User member : room.members()) {
+            member.outbox.offer(shared);
+            queued++;
+        }
+        room.sent(queued);
+        shared.release();
+    }
+
+    /**
+     * Keep a message in the history.
+     *
+     * @return its number in the history, or -1 if it is not kept.
+     */
+    private synchronized long record(String mess) {
+        if (history == null) return -1;
+        try {
+            long number = history.append(mess);
+            index.trim(history.first());
+            return number;
+        } catch (IOException e) {
+            DBG("record(): Could not write history: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Wait until every queued message has been sent.
+     *
+     * @return false if that did not happen within the timeout.
+     */
+    boolean awaitSent(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (User user : users.users()) {
+            while (!user.outbox.isIdle()) {
+                if (System.currentTimeMillis() > deadline) return false;
+                Thread.yield();
+            }
+        }
+        return true;
+    }
+
+    public ChatServerCore(int port) {
+        listenPort = port;
+        Room<User> lobby = new Room<User>(ChatCodec.LOBBY);
+        rooms.put(lobby.getName(), lobby);
+        lobby.register();
+        if (SEND_DEADLINE > 0) {
+            long period = Math.max(10, SEND_DEADLINE / 4);
+            watchdog.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkSendDeadlines();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void startServer() {
+        try {
+            localAddress = InetAddress.getByName("localhost");
+        } catch (UnknownHostException e1) {
+            e1.printStackTrace();
+        }
+
+        openHistory();
+
+        if (SIMPLE_CONNECTION)
+            server = new CompressedConnection(new SimpleConnection(listenPort));
+        else
+            server = new CompressedConnection(new ConnectionImpl(listenPort));
+
+        Thread listener = new Thread() {
+
+            private Connection newConn;
+
+            private String message = "";
+
+            /**
+             * Registers the user if the first message is a hello. Any other
+             * first message, valid or not, goes to malformed().
+             */
+            private final ChatHandler login = new ChatHandler() {
+                public void hello(String name) {
+                    DBG("Fikk inn connection fra: " + name);
+                    User user = addUser(name, newConn);
+                    if (user == null) return;
+                    ChatServerCore.this.joinRoom(user, ChatCodec.LOBBY);
+                    say(ChatCodec.notice(name + " joined."));
+                }
+
+                public void malformed(String message) {
+                    // Also called for a valid first message that is not a hello.
+                    DBG("startServer(): Expected hello, closing connection.");
+                    try {
+                        newConn.close();
+                    } catch (IOException e) {
+                        // Not used anyway.
+                    }
+                }
+            };
+
+            public void run() {
+                while (run) {
+                    try {
+                        DBG("Server lytter p:" + listenPort);
+                        newConn = null;
+                        newConn = server.accept();
+                        message = newConn.receive();
+                        if (ChatCodec.typeOf(message) == ChatCodec.HELLO)
+                            ChatCodec.decode(message, login);
+                        else
+                            login.malformed(message);
+                    } catch (SocketTimeoutException e) {
+		      DBG("startServer(): Noe gikk galt, forsk igjen.");
+		      //e.printStackTrace();
+                    } catch (IOException e) {
+		      DBG("startServer(): Noe gikk galt, forsk igjen.");
+		      //e.printStackTrace();
+                    } catch (RuntimeException e) {
+                        // A bad login must not stop the server accepting.
+                        DBG("startServer(): Closing connection after " + e);
+                        if (newConn != null) login.malformed(message);
+                    }
+                }
+            }
+        };
+        listener.start();
+    }
+
+    /*
+     * The roster is changed and the change broadcast under the same lock as
+     * broadcast(), so every user gets the changes in version order.
+     *
+     * A room's lock may be taken before the server's lock, never after it:
+     * nothing that holds the server's lock touches a room's lock.
+     */
+
+    /**
+     * Register a connected user and start receiving from it. The user gets
+     * the whole roster, everybody else only that it joined. The user is not
+     * in the lobby until it is joined.
+     *
+     * @return the user, or null if the connection is already registered.
+     */
+    synchronized User addUser(String name, Connection conn) {
+        User user = new User(name, conn);
+        user.id = users.add(conn, user, name);
+        if (user.id < 0) return null;
+        sendRoster(user);
+        broadcast(ChatCodec.joined(users.version(), user.id, name));
+        return user;
+    }
+
+    /**
+     * Put a user in a room, creating the room if no one is in it, and send
+     * the user the latest lines said there. The other members are told,
+     * except in the lobby, where everybody is told the user logged on.
+     */
+    private void joinRoom(User user, String name) {
+        while (true) {
+            Room<User> room = rooms.get(name);
+            if (room == null) {
+                Room<User> created = new Room<User>(name);
+                room = rooms.putIfAbsent(name, created);
+                if (room == null) {
+                    room = created;
+                    room.register();
+                }
+            }
+            synchronized (room) {
+                // The last member left since it was looked up; make another.
+                if (room.isClosed()) continue;
+                if (!room.join(user)) return;
+                user.rooms.add(room);
+                // A user on its way out closes its outbox before it leaves its
+                // rooms. So either leaveRooms() sees this room, or this sees
+                // the closed outbox; otherwise the user would stay here.
+                if (user.outbox.isClosed()) {
+                    leaveRoom(user, room);
+                    return;
+                }
+                if (!room.isLobby()) roomcast(room, ChatCodec.notice(user.name + " joined " + room
+                        + "."));
+                replayRoom(user, room);
+                return;
+            }
+        }
+    }
+
+    /** Take a user out of a room, and remove the room if it is now empty. */
+    private void leaveRoom(User user, Room<User> room) {
+        synchronized (room) {
+            if (!room.leave(user)) return;
+            user.rooms.remove(room);
+            if (room.isLobby()) return;
+            if (room.getMembers() > 0) {
+                roomcast(room, ChatCodec.notice(user.name + " left " + room + "."));
+            }
+            else {
+                room.close();
+                rooms.remove(room.getName(), room);
+            }
+        }
+    }
+
+    /** Take a user that is leaving out of all its rooms. */
+    private void leaveRooms(User user) {
+        for (Room<User> room : user.rooms) {
+            leaveRoom(user, room);
+        }
+    }
+
+    /** @return the name a room is known by, whatever case the user wrote. */
+    private static String roomKey(String room) {
+        return room.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Send a user the latest of what was said in a room before it joined,
+     * oldest first. Hold the room's lock, so lines said meanwhile come after.
+     */
+    private synchronized void replayRoom(final User user, Room<User> room) {
+        if (history == null) return;
+        // More would overflow the user's queue before it is sent.
+        int max = Math.min(HISTORY_REPLAY, QUEUE_LIMIT / 2);
+        final long since = HISTORY_REPLAY_AGE > 0 ? System.currentTimeMillis()
+                - HISTORY_REPLAY_AGE : 0;
+        long[] numbers = index.search(HistoryIndex.IN + room.getName(), max);
+        ChatHistory.Sink sink = new ChatHistory.Sink() {
+            public void message(long number, long time, String message) {
+                if (time >= since) sendTo(user, message);
+            }
+        };
+        for (int i = numbers.length - 1; i >= 0; i--) {
+            history.read(numbers[i], sink);
+        }
+    }
+
+    /**
+     * Send a user the newest chat lines that match a query. Under the lock of
+     * say(), so the lines found are still in the history.
+     */
+    private synchronized void search(User user, String query) {
+        if (index == null) {
+            sendTo(user, ChatCodec.notice("No history is kept."));
+            return;
+        }
+        // Lines from rooms the user is not in are left out, so look further.
+        long[] numbers = index.search(query, SEARCH_LIMIT * 4);
+        final long[] times = new long[SEARCH_LIMIT];
+        final String[] from = new String[SEARCH_LIMIT];
+        final String[] texts = new String[SEARCH_LIMIT];
+        final ChatLine line = new ChatLine();
+        int found = 0;
+        for (int i = 0; i < numbers.length && found < SEARCH_LIMIT; i++) {
+            final int n = found;
+            history.read(numbers[i], new ChatHistory.Sink() {
+                public void message(long number, long time, String message) {
+                    times[n] = time;
+                    ChatCodec.decode(message, line);
+                }
+            });
+            Room<User> room = rooms.get(line.room);
+            if (room == null || !room.contains(user)) continue;
+            from[found] = line.from;
+            texts[found] = line.text;
+            found++;
+        }
+        sendTo(user, ChatCodec.searchResult(query, Arrays.copyOf(times, found), Arrays.copyOf(
+                from, found), Arrays.copyOf(texts, found)));
+    }
+
+    /** Picks the room, sender and text out of a chat line. */
+    private static class ChatLine extends ChatHandler {
+        String room;
+        String from;
+        String text;
+
+        public void chat(String room, String from, String text) {
+            this.room = room;
+            this.from = from;
+            this.text = text;
+        }
+    }
+
+    /** Open the history in HISTORY_DIR, and flush it when the server exits. */
+    private void openHistory() {
+        if (HISTORY_DIR.length() == 0) return;
+        try {
+            history = new ChatHistory(new File(HISTORY_DIR), HISTORY_SEGMENT_BYTES,
+                    HISTORY_SEGMENTS, HISTORY_MAX_AGE);
+            DBG("History: " + history.size() + " messages in " + HISTORY_DIR);
+        } catch (IOException e) {
+            DBG("openHistory(): No history: " + e.getMessage());
+            return;
+        }
+        index = new HistoryIndex();
+        final ChatLine line = new ChatLine();
+        history.replay(0, Integer.MAX_VALUE, new ChatHistory.Sink() {
+            public void message(long number, long time, String message) {
+                line.from = null;
+                ChatCodec.decode(message, line);
+                if (line.from != null) index.add(number, line.room, line.from, line.text);
+            }
+        });
+        index.trim(history.first());
+        DBG("History: " + index.getTerms() + " words indexed.");
+        Runtime.getRuntime().addShutdownHook(new Thread("ChatServer-history") {
+            public void run() {
+                history.flush();
+            }
+        });
+    }
+
+    /** @return false if the user was not registered. */
+    private synchronized boolean removeUser(User user) {
+        if (users.remove(user.conn) == null) return false;
+        broadcast(ChatCodec.left(users.version(), user.id));
+        return true;
+    }
+
+    private synchronized void renameUser(User user, String name) {
+        if (!users.rename(user.conn, name)) return;
+        broadcast(ChatCodec.renamed(users.version(), user.id, name));
+    }
+
+    /** Send the whole roster to one user, after login or when it asks. */
+    private synchronized void sendRoster(User user) {
+        UserRegistry.Roster roster = users.roster();
+        sendTo(user, ChatCodec.roster(roster.getVersion(), roster.getUsers()));
+    }
+
+    /** Queue a message for one user. */
+    private void sendTo(User user, String mess) {
+        SharedMessage msg = new SharedMessage(mess);
+        user.outbox.offer(msg);
+        msg.release();
+    }
+
+    /**
+     * @return the logged on users. Made when asked for after a change, so
+     *         asking often costs nothing while the users are the same.
+     */
+    UserRegistry.Roster getRoster() {
+        return users.roster();
+    }
+
+    /** @return a number that grows every time the roster changes. */
+    long getRosterVersion() {
+        return users.version();
+    }
+
+    /**
+     * Stop sending: the writer threads are stopped and the rooms removed.
+     * For a server that is thrown away without exiting the VM.
+     */
+    public void stop() {
+        run = false;
+        writers.shutdownNow();
+        slowWriters.shutdownNow();
+        watchdog.shutdownNow();
+        for (Room<User> room : rooms.values()) {
+            synchronized (room) {
+                room.close();
+            }
+        }
+        rooms.clear();
+    }
+
+    public static void main(String[] args) {
+        String address;
+        int port;
+        Log.setLogName("Server");
+        Settings settings = new Settings();
+        port = settings.getServerPort();
+        SIMPLE_CONNECTION = settings.useSimpleConnection();
+        if (SIMPLE_CONNECTION){
+            DBG("Using SimpleConnection");
+        }
+        ChatServerCore server = new ChatServerCore(port);
+        server.startServer();
+    }
+
+  /** Write debug message to stdout. */
+  private static void DBG(String msg) {
+    if (debug)
+      System.out.println("ChatServer: " + msg);
+  }
+}
@@ -0,0 +1,199 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds chat lines in the {@link ChatHistory} by the words in them and by
+ * who said them and where, without reading the history. For every word,
+ * sender and room, it keeps the numbers of the messages that have it in a
+ * {@link PostingList}. Messages are added as they are said. <br>
+ * <br>
+ * A query is a list of words, all of which must be in a message, and
+ * optionally "from:name" for the sender and "in:room" for the room. The newest messages are found
+ * first, by walking the lists of the query from the top down and letting
+ * each skip to the number the others are at, so a query that wants the
+ * latest few matches decodes only a few blocks of each list however long
+ * they are. Words are letters and digits, compared without case.
+ */
+class HistoryIndex {
+
+    /** Query prefix for the sender. */
+    static final String FROM = "from:";
+
+    /** Query prefix for the room. */
+    static final String IN = "in:";
+
+    /** Sender and room terms start with a char words can not contain. */
+    private static final char SENDER = '\u0000';
+    private static final char ROOM = '\u0001';
+
+    /** Longer words are cut to this length. */
+    static final int MAX_WORD = 32;
+
+    private final HashMap<String, PostingList> terms = new HashMap<String, PostingList>();
+    private long messages = 0;
+    private long first = 0;
+
+    /**
+     * Index a chat line.
+     *
+     * @param number
+     *            the message number in the history, larger than the one
+     *            before.
+     */
+    synchronized void add(long number, String room, String from, String text) {
+        term(ROOM + lower(room)).add(number);
+        term(SENDER + lower(from)).add(number);
+        int i = 0;
+        while (i < text.length()) {
+            while (i < text.length() && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) term(lower(text.substring(start, Math.min(i, start + MAX_WORD))))
+                    .add(number);
+        }
+        messages++;
+    }
+
+    /**
+     * Find messages.
+     *
+     * @param query
+     *            words and maybe "from:name" and "in:room".
+     * @param limit
+     *            most numbers to return.
+     * @return message numbers, newest first; empty if the query has no words.
+     */
+    synchronized long[] search(String query, int limit) {
+        List<PostingList> lists = new ArrayList<PostingList>();
+        String[] words = query.trim().split("\\s+");
+        for (int w = 0; w < words.length; w++) {
+            String word = words[w];
+            String term;
+            if (word.regionMatches(true, 0, FROM, 0, FROM.length())) {
+                term = SENDER + lower(word.substring(FROM.length()));
+            }
+            else if (word.regionMatches(true, 0, IN, 0, IN.length())) {
+                term = ROOM + lower(word.substring(IN.length()));
+            }
+            else {
+                StringBuilder sb = new StringBuilder(word.length());
+                for (int i = 0; i < word.length() && sb.length() < MAX_WORD; i++) {
+                    if (Character.isLetterOrDigit(word.charAt(i))) sb.append(word.charAt(i));
+                }
+                if (sb.length() == 0) continue;
+                term = lower(sb.toString());
+            }
+            PostingList list = terms.get(term);
+            if (list == null) return new long[0];
+            lists.add(list);
+        }
+        if (lists.isEmpty()) return new long[0];
+
+        // Start with the shortest list, it rules out the most.
+        PostingList.Cursor[] cursors = new PostingList.Cursor[lists.size()];
+        int shortest = 0;
+        for (int i = 1; i < lists.size(); i++) {
+            if (lists.get(i).size() < lists.get(shortest).size()) shortest = i;
+        }
+        cursors[0] = new PostingList.Cursor(lists.get(shortest));
+        for (int i = 0, c = 1; i < lists.size(); i++) {
+            if (i != shortest) cursors[c++] = new PostingList.Cursor(lists.get(i));
+        }
+
+        long[] found = new long[limit];
+        int n = 0;
+        long candidate = Long.MAX_VALUE;
+        while (n < limit) {
+            long v = cursors[0].seekAtMost(candidate);
+            if (v < first) break;
+            boolean all = true;
+            for (int i = 1; i < cursors.length; i++) {
+                long w = cursors[i].seekAtMost(v);
+                if (w != v) {
+                    candidate = w;
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                found[n++] = v;
+                candidate = v - 1;
+            }
+            if (candidate < first) break;
+        }
+        long[] result = new long[n];
+        System.arraycopy(found, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * Forget messages no longer in the history. The lists are rewritten, so
+     * this is done when the history has dropped a segment, not per message.
+     *
+     * @param first
+     *            number of the oldest message kept.
+     */
+    synchronized void trim(long first) {
+        if (first <= this.first) return;
+        this.first = first;
+        for (Iterator<Map.Entry<String, PostingList>> it = terms.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<String, PostingList> e = it.next();
+            PostingList list = e.getValue().from(first);
+            if (list == null) it.remove();
+            else e.setValue(list);
+        }
+    }
+
+    /** @return number of messages added. */
+    synchronized long getMessages() {
+        return messages;
+    }
+
+    /** @return number of different words, senders and rooms. */
+    synchronized int getTerms() {
+        return terms.size();
+    }
+
+    /** @return bytes held by the lists, roughly. */
+    synchronized long getMemory() {
+        long bytes = 0;
+        for (Iterator<PostingList> it = terms.values().iterator(); it.hasNext();) {
+            bytes += it.next().memory();
+        }
+        return bytes;
+    }
+
+    private PostingList term(String term) {
+        PostingList list = terms.get(term);
+        if (list == null) {
+            list = new PostingList();
+            terms.put(term, list);
+        }
+        return list;
+    }
+
+    /** Lower case, the same whatever the default locale. */
+    private static String lower(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            char l = Character.toLowerCase(c);
+            if (l != c && sb == null) {
+                sb = new StringBuilder(s.length());
+                sb.append(s, 0, i);
+            }
+            if (sb != null) sb.append(l);
+        }
+        return sb == null ? s : sb.toString();
+    }
+}
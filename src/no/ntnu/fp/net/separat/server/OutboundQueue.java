@@ -0,0 +1,228 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+import no.ntnu.fp.net.co.SharedMessage;
+
+/**
+ * Messages waiting to be sent to one user. {@link #offer(SharedMessage)} only queues
+ * and returns; the messages are sent one at a time, in order, by a task on a
+ * shared writer pool that runs while the queue is not empty. So a user whose
+ * connection is slow only delays its own messages. <br>
+ * <br>
+ * At most limit messages are kept in memory. What happens to more depends on
+ * the {@link SlowConsumerPolicy}; with SPILL they are appended to a temporary
+ * file and read back, still in order, when the memory queue is empty. <br>
+ * <br>
+ * The queue holds a reference to each message it keeps and releases it when
+ * the message has been delivered or thrown away. <br>
+ * <br>
+ * {@link #moveTo(Executor)} hands the queue to another pool, e.g. one for
+ * users that have stalled a writer.
+ */
+abstract class OutboundQueue {
+
+    /** Guarded by this. */
+    private Executor writers;
+    /** Set by moveTo() until the running task has handed over to the new pool. */
+    private boolean moved = false;
+    private final int limit;
+    private final SlowConsumerPolicy policy;
+
+    private final LinkedList<SharedMessage> queue = new LinkedList<SharedMessage>();
+    /** True while a writer task for this queue is submitted or running. */
+    private boolean scheduled = false;
+    private boolean closed = false;
+    private long dropped = 0;
+
+    private File spillFile;
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+    /** Messages in the spill file not read back yet. */
+    private int spilled = 0;
+
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            SharedMessage msg;
+            while ((msg = next()) != null) {
+                try {
+                    deliver(msg);
+                }
+                finally {
+                    msg.release();
+                }
+            }
+        }
+    };
+
+    /**
+     * @param writers
+     *            the pool that sends the messages.
+     * @param limit
+     *            messages kept in memory.
+     * @param policy
+     *            what to do when the limit is reached.
+     */
+    OutboundQueue(Executor writers, int limit, SlowConsumerPolicy policy) {
+        this.writers = writers;
+        this.limit = limit;
+        this.policy = policy;
+    }
+
+    /** Send a message to the user. Called on a writer thread, never concurrently. */
+    protected abstract void deliver(SharedMessage msg);
+
+    /** Called once when the queue is full and the policy is DISCONNECT. */
+    protected abstract void overflowed();
+
+    /**
+     * Queue a message. Never blocks on the network.
+     *
+     * @param msg
+     *            the message, retained while it is queued.
+     */
+    void offer(SharedMessage msg) {
+        boolean overflow = false;
+        synchronized (this) {
+            if (closed) return;
+            if (spilled > 0) {
+                spill(msg); // Keep order: older messages are already in the file.
+            }
+            else if (queue.size() < limit) {
+                queue.addLast(msg.retain());
+            }
+            else if (policy == SlowConsumerPolicy.DROP_OLDEST) {
+                queue.removeFirst().release();
+                queue.addLast(msg.retain());
+                dropped++;
+            }
+            else if (policy == SlowConsumerPolicy.SPILL) {
+                spill(msg);
+            }
+            else {
+                closed = true;
+                overflow = true;
+            }
+            if (!scheduled && !closed) {
+                scheduled = true;
+                writers.execute(drain);
+            }
+        }
+        if (overflow) overflowed();
+    }
+
+    /** Throw away what is queued and stop sending. */
+    synchronized void close() {
+        closed = true;
+        while (!queue.isEmpty()) {
+            queue.removeFirst().release();
+        }
+        closeSpill();
+    }
+
+    /**
+     * Send the rest of the messages through another pool. A task already
+     * running finishes the message it is sending and goes on in the new pool.
+     *
+     * @param executor
+     *            the pool to send through from now on.
+     */
+    synchronized void moveTo(Executor executor) {
+        writers = executor;
+        moved = scheduled;
+    }
+
+    /** @return true once the queue is closed, by close() or by overflowing. */
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /** @return true if nothing is queued or being sent. */
+    synchronized boolean isIdle() {
+        return !scheduled;
+    }
+
+    /** @return messages thrown away by DROP_OLDEST. */
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    /** Next message for the writer, or null after marking the task done. */
+    private synchronized SharedMessage next() {
+        if (moved && !closed) {
+            // This thread belongs to the old pool; go on in the new one.
+            moved = false;
+            writers.execute(drain);
+            return null;
+        }
+        moved = false;
+        if (!closed) {
+            if (!queue.isEmpty()) return queue.removeFirst();
+            if (spilled > 0) {
+                SharedMessage msg = unspill();
+                if (msg != null) return msg;
+            }
+        }
+        scheduled = false;
+        notifyAll();
+        return null;
+    }
+
+    /** Only the text is kept; the message is read back as a new one. */
+    private void spill(SharedMessage msg) {
+        try {
+            if (spillOut == null) {
+                spillFile = File.createTempFile("ktn-outbound-", ".spill");
+                spillFile.deleteOnExit();
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                        spillFile)));
+                spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                        spillFile)));
+            }
+            spillOut.writeUTF(msg.getText());
+            spilled++;
+        }
+        catch (IOException e) {
+            // Nowhere to keep it, so it is lost.
+            dropped++;
+        }
+    }
+
+    private SharedMessage unspill() {
+        try {
+            spillOut.flush();
+            SharedMessage msg = new SharedMessage(spillIn.readUTF());
+            if (--spilled == 0) closeSpill();
+            return msg;
+        }
+        catch (IOException e) {
+            dropped += spilled;
+            closeSpill();
+            return null;
+        }
+    }
+
+    private void closeSpill() {
+        spilled = 0;
+        try {
+            if (spillOut != null) spillOut.close();
+            if (spillIn != null) spillIn.close();
+        }
+        catch (IOException e) {
+            // Deleting it anyway.
+        }
+        if (spillFile != null) spillFile.delete();
+        spillOut = null;
+        spillIn = null;
+        spillFile = null;
+    }
+}
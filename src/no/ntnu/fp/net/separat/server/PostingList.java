@@ -0,0 +1,157 @@
+package no.ntnu.fp.net.separat.server;
+
+/**
+ * An ascending list of message numbers, stored compactly: in blocks of
+ * {@value #BLOCK}, where the first number of each block is kept as it is and
+ * the rest as the difference to the one before, in a variable number of
+ * bytes, 7 bits per byte. A message number usually takes one or two bytes.
+ * The block starts work as skip pointers, so a {@link Cursor} can find a
+ * number by binary search over the blocks and only decode one block. Not
+ * thread-safe.
+ */
+class PostingList {
+
+    static final int BLOCK = 128;
+
+    private byte[] bytes = new byte[8];
+    private int length = 0;
+    /** First number and byte offset of each block. */
+    private long[] blockFirst = new long[1];
+    private int[] blockOffset = new int[1];
+    private int blocks = 0;
+    private int count = 0;
+    private long last = -1;
+
+    /**
+     * Add a number, larger than the ones added before; adding the last one
+     * again does nothing.
+     */
+    void add(long number) {
+        if (number == last) return;
+        if (number < last) throw new IllegalArgumentException(number + " after " + last);
+        if (count % BLOCK == 0) {
+            if (blocks == blockFirst.length) {
+                long[] first = new long[blocks * 2];
+                int[] offset = new int[blocks * 2];
+                System.arraycopy(blockFirst, 0, first, 0, blocks);
+                System.arraycopy(blockOffset, 0, offset, 0, blocks);
+                blockFirst = first;
+                blockOffset = offset;
+            }
+            blockFirst[blocks] = number;
+            blockOffset[blocks] = length;
+            blocks++;
+        }
+        else {
+            long delta = number - last;
+            if (length + 10 > bytes.length) {
+                byte[] b = new byte[Math.max(bytes.length * 2, length + 10)];
+                System.arraycopy(bytes, 0, b, 0, length);
+                bytes = b;
+            }
+            while ((delta & ~0x7fL) != 0) {
+                bytes[length++] = (byte)(delta & 0x7f | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte)delta;
+        }
+        last = number;
+        count++;
+    }
+
+    /** @return numbers in the list. */
+    int size() {
+        return count;
+    }
+
+    /** @return bytes used, for statistics. */
+    int memory() {
+        return bytes.length + blockFirst.length * 12;
+    }
+
+    /**
+     * A copy without the numbers below a limit.
+     *
+     * @return the copy, or null if no number is left.
+     */
+    PostingList from(long first) {
+        PostingList copy = new PostingList();
+        long[] buffer = new long[BLOCK];
+        for (int b = Math.max(0, blockFor(first)); b < blocks; b++) {
+            int n = decode(b, buffer);
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] >= first) copy.add(buffer[i]);
+            }
+        }
+        return copy.count == 0 ? null : copy;
+    }
+
+    /** @return the last block whose first number is at most target, or -1. */
+    private int blockFor(long target) {
+        int lo = 0;
+        int hi = blocks - 1;
+        if (blocks == 0 || blockFirst[0] > target) return -1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blockFirst[mid] <= target) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /** Decode a block into out; @return the numbers in it. */
+    private int decode(int block, long[] out) {
+        int n = block == blocks - 1 ? count - block * BLOCK : BLOCK;
+        int p = blockOffset[block];
+        long value = blockFirst[block];
+        out[0] = value;
+        for (int i = 1; i < n; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[p++];
+                delta |= (long)(b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += delta;
+            out[i] = value;
+        }
+        return n;
+    }
+
+    /**
+     * Walks a list from the largest number down. The list must not be
+     * changed while a cursor is used.
+     */
+    static final class Cursor {
+        private final PostingList list;
+        private final long[] buffer = new long[BLOCK];
+        private int block = -1;
+        private int index;
+
+        Cursor(PostingList list) {
+            this.list = list;
+        }
+
+        /**
+         * @param target
+         *            at most the target of the call before.
+         * @return the largest number at most target, or -1 if there is none.
+         */
+        long seekAtMost(long target) {
+            if (block < 0 || buffer[0] > target) {
+                int b = list.blockFor(target);
+                if (b < 0) return -1;
+                if (b != block) {
+                    index = list.decode(b, buffer) - 1;
+                    block = b;
+                }
+            }
+            while (buffer[index] > target) {
+                index--;
+            }
+            return buffer[index];
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import no.ntnu.fp.net.separat.protocol.ChatCodec;
+
+/**
+ * A named chat room and the users in it, so a message is only queued for the
+ * members of its room. Messages to a room are sent while holding the room's
+ * lock, which gives every member the room's messages in the same order
+ * without holding up other rooms. <br>
+ * <br>
+ * Counters for the room are published as an MBean under
+ * {@value #DOMAIN}:type=Room,name=&lt;name&gt; from when it is registered
+ * until it is closed.
+ *
+ * @param <U>
+ *            what is kept per user.
+ */
+class Room<U> implements RoomMBean {
+
+    /** JMX domain of the MBeans. */
+    static final String DOMAIN = "no.ntnu.fp.net.separat.server";
+
+    /** Longest room name. */
+    static final int MAX_NAME = 32;
+
+    private final String name;
+    private final Set<U> members = Collections.newSetFromMap(new ConcurrentHashMap<U, Boolean>());
+    private boolean closed = false;
+    private ObjectName objectName;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong leaves = new AtomicLong();
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Publish the MBean; done once the room is the one in use, as only one
+     * room of a name can be registered.
+     */
+    void register() {
+        try {
+            ObjectName on = new ObjectName(DOMAIN + ":type=Room,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        }
+        catch (Exception e) {
+            // E.g. another server in the same VM has the name; the room
+            // works without its MBean.
+        }
+    }
+
+    /**
+     * @return true if the name can be used for a room: 1 to {@value #MAX_NAME}
+     *         letters, digits, '-' or '_'.
+     */
+    static boolean isValidName(String name) {
+        if (name == null || name.length() == 0 || name.length() > MAX_NAME) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+
+    /** @return true if a user joins this room when it logs on. */
+    boolean isLobby() {
+        return name.equals(ChatCodec.LOBBY);
+    }
+
+    /** @return false if the user was already a member. */
+    boolean join(U user) {
+        if (!members.add(user)) return false;
+        joins.incrementAndGet();
+        return true;
+    }
+
+    /** @return false if the user was not a member. */
+    boolean leave(U user) {
+        if (!members.remove(user)) return false;
+        leaves.incrementAndGet();
+        return true;
+    }
+
+    boolean contains(U user) {
+        return members.contains(user);
+    }
+
+    /** @return the members; iterating it never throws ConcurrentModificationException. */
+    Set<U> members() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Count a message sent to the room.
+     *
+     * @param queued
+     *            members it was queued for.
+     */
+    void sent(int queued) {
+        messages.incrementAndGet();
+        deliveries.addAndGet(queued);
+    }
+
+    /** Close the room, hold the lock. A closed room can not be joined. */
+    void close() {
+        closed = true;
+        try {
+            if (objectName != null) ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+        }
+        catch (Exception e) {
+            // Already gone.
+        }
+    }
+
+    /** @return true once closed; hold the lock. */
+    boolean isClosed() {
+        return closed;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMembers() {
+        return members.size();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getDeliveries() {
+        return deliveries.get();
+    }
+
+    public long getJoins() {
+        return joins.get();
+    }
+
+    public long getLeaves() {
+        return leaves.get();
+    }
+
+    public String toString() {
+        return "#" + name;
+    }
+}
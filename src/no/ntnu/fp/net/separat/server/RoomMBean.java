@@ -0,0 +1,25 @@
+package no.ntnu.fp.net.separat.server;
+
+/**
+ * Management interface of a chat {@link Room}, as seen in e.g. JConsole.
+ */
+public interface RoomMBean {
+
+    /** @return the name of the room. */
+    public String getName();
+
+    /** @return users in the room now. */
+    public int getMembers();
+
+    /** @return messages sent to the room. */
+    public long getMessages();
+
+    /** @return messages queued for members, i.e. the fan-out. */
+    public long getDeliveries();
+
+    /** @return times a user joined the room. */
+    public long getJoins();
+
+    /** @return times a user left the room. */
+    public long getLeaves();
+}
@@ -0,0 +1,17 @@
+package no.ntnu.fp.net.separat.server;
+
+/**
+ * What the server does with a new message for a user whose outbound queue is
+ * full, i.e. a user that receives slower than the others talk.
+ */
+public enum SlowConsumerPolicy {
+
+    /** Throw away the oldest queued message to make room. */
+    DROP_OLDEST,
+
+    /** Disconnect the user. */
+    DISCONNECT,
+
+    /** Keep the message in a temporary file until the user catches up. */
+    SPILL
+}
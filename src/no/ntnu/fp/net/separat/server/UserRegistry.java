@@ -0,0 +1,200 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connected users, safe to change and read from any thread. Users are
+ * keyed by their connection, so join, leave and rename are each one hash map
+ * operation. {@link #users()} can be iterated while users come and go, without
+ * a lock or a copy. <br>
+ * <br>
+ * Every change bumps a version number. The list of names, the
+ * {@link Roster}, is only built when it is asked for after a change, and the
+ * same snapshot is returned until the next change. Each user also gets an id
+ * when it joins, which is never reused, so clients can tell users with the
+ * same name apart.
+ *
+ * @param <U>
+ *            what is kept per user.
+ */
+class UserRegistry<U> {
+
+    /** The ids and names of the users at one version, in the order they joined. */
+    static final class Roster {
+        private final long version;
+        private final Map<Long, String> users;
+        private final List<String> names;
+
+        Roster(long version, LinkedHashMap<Long, String> users) {
+            this.version = version;
+            this.users = Collections.unmodifiableMap(users);
+            this.names = Collections.unmodifiableList(new ArrayList<String>(users.values()));
+        }
+
+        /** @return the registry version this is a snapshot of. */
+        long getVersion() {
+            return version;
+        }
+
+        /** @return the names, not modifiable. */
+        List<String> getNames() {
+            return names;
+        }
+
+        /** @return id to name, in join order, not modifiable. */
+        Map<Long, String> getUsers() {
+            return users;
+        }
+
+        /** @return the names as the clients expect them, e.g. "[a, b]". */
+        public String toString() {
+            return names.toString();
+        }
+    }
+
+    private static final class Entry<U> {
+        final U user;
+        /** Id of the user, also the join order. */
+        final long id;
+        volatile String name;
+
+        Entry(U user, String name, long id) {
+            this.user = user;
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    private static final Comparator<Entry<?>> JOIN_ORDER = new Comparator<Entry<?>>() {
+        public int compare(Entry<?> a, Entry<?> b) {
+            return a.id < b.id ? -1 : a.id == b.id ? 0 : 1;
+        }
+    };
+
+    private final ConcurrentHashMap<Object, Entry<U>> entries = new ConcurrentHashMap<Object, Entry<U>>();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private volatile Roster roster = new Roster(0, new LinkedHashMap<Long, String>());
+
+    /** The users, as a live view over the entries. */
+    private final Collection<U> users = new AbstractCollection<U>() {
+        public Iterator<U> iterator() {
+            final Iterator<Entry<U>> it = entries.values().iterator();
+            return new Iterator<U>() {
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public U next() {
+                    return it.next().user;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        public int size() {
+            return entries.size();
+        }
+    };
+
+    /**
+     * Add a user.
+     *
+     * @param key
+     *            the user's connection.
+     * @return the id of the user, or -1 if a user with this key is already
+     *         registered.
+     */
+    long add(Object key, U user, String name) {
+        Entry<U> entry = new Entry<U>(user, name, joins.incrementAndGet());
+        if (entries.putIfAbsent(key, entry) != null) return -1;
+        version.incrementAndGet();
+        return entry.id;
+    }
+
+    /** @return the id of the user with the key, or -1 if there is none. */
+    long id(Object key) {
+        Entry<U> entry = entries.get(key);
+        return entry == null ? -1 : entry.id;
+    }
+
+    /**
+     * Remove a user.
+     *
+     * @return the user, or null if none was registered with the key.
+     */
+    U remove(Object key) {
+        Entry<U> entry = entries.remove(key);
+        if (entry == null) return null;
+        version.incrementAndGet();
+        return entry.user;
+    }
+
+    /**
+     * Change the name of a user.
+     *
+     * @return false if no user is registered with the key.
+     */
+    boolean rename(Object key, String name) {
+        Entry<U> entry = entries.get(key);
+        if (entry == null) return false;
+        entry.name = name;
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return the registered users. Iterating it sees every user that stays
+     *         registered meanwhile and never throws
+     *         ConcurrentModificationException.
+     */
+    Collection<U> users() {
+        return users;
+    }
+
+    /** @return number of registered users. */
+    int size() {
+        return entries.size();
+    }
+
+    /** @return the current version; changes with every join, leave and rename. */
+    long version() {
+        return version.get();
+    }
+
+    /** @return the names of the users, rebuilt only if they changed. */
+    Roster roster() {
+        Roster current = roster;
+        long v = version.get();
+        if (current.getVersion() == v) return current;
+        synchronized (this) {
+            current = roster;
+            v = version.get();
+            if (current.getVersion() == v) return current;
+            List<Entry<U>> list = new ArrayList<Entry<U>>(entries.values());
+            Collections.sort(list, JOIN_ORDER);
+            LinkedHashMap<Long, String> users = new LinkedHashMap<Long, String>();
+            for (int i = 0; i < list.size(); i++) {
+                Entry<U> entry = list.get(i);
+                users.put(Long.valueOf(entry.id), entry.name);
+            }
+            // A change while building gets a newer version, so the next call
+            // builds again.
+            roster = current = new Roster(v, users);
+            return current;
+        }
+    }
+}